@@ -0,0 +1,146 @@
+/*
+ * This Source Code is subject to the terms of the Mozilla Public License
+ * version 2.0 (the "License"). You can obtain a copy of the License at
+ * http://mozilla.org/MPL/2.0/.
+ */
+
+package info.palant.apkInstrumentation;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import android.util.Log;
+
+// Compares escaping of logged stream data via the lookup table in
+// LoggingInputStream with the previous String.format() implementation. Each
+// operation reads a payload in chunks, the way an app would read a response.
+public class EscapingBenchmark
+{
+  static final int PAYLOAD_SIZE = 1024 * 1024;
+  static final int CHUNK_SIZE = 8192;
+  static final int WARMUP_ITERATIONS = 10;
+  static final int ITERATIONS = 20;
+
+  private interface Implementation
+  {
+    void run(byte[] payload) throws IOException;
+  }
+
+  // Escaping as done before the lookup table was introduced
+  private static class LegacyEscaping
+  {
+    private static String formatByte(byte b)
+    {
+      if (b == 0x5C)
+        return "\\\\";
+      else if (b == 0x22)
+        return "\\\"";
+      else if (b >= 0x20 && b < 0x7F)
+        return String.valueOf((char)b);
+      else
+        return String.format("\\x%02x", b);
+    }
+
+    static void log(String tag, String prefix, byte[] data, int off, int len)
+    {
+      StringBuilder builder = new StringBuilder();
+      for (int i = off; i < off + len; i++)
+        builder.append(formatByte(data[i]));
+
+      String output = String.format("%s: received data \"%s\"", prefix, builder.toString());
+      for (int i = 0; i < output.length(); i += 4000)
+        Log.i(tag, output.substring(i, Math.min(i + 4000, output.length())));
+    }
+  }
+
+  private static void readAll(InputStream stream) throws IOException
+  {
+    byte[] buffer = new byte[CHUNK_SIZE];
+    while (stream.read(buffer, 0, buffer.length) >= 0)
+      ;
+    stream.close();
+  }
+
+  private static final Implementation LEGACY = new Implementation()
+  {
+    @Override
+    public void run(byte[] payload) throws IOException
+    {
+      for (int off = 0; off < payload.length; off += CHUNK_SIZE)
+        LegacyEscaping.log("StreamLogger", "input", payload, off, Math.min(CHUNK_SIZE, payload.length - off));
+    }
+  };
+
+  private static final Implementation LOOKUP_TABLE = new Implementation()
+  {
+    @Override
+    public void run(byte[] payload) throws IOException
+    {
+      readAll(new LoggingInputStream(new ByteArrayInputStream(payload), "StreamLogger", "input"));
+    }
+  };
+
+  private static byte[] createText()
+  {
+    byte[] line = "{\"id\": 12345, \"name\": \"Example \\\"item\\\"\", \"tags\": [\"a\", \"b\"]}\n".getBytes(StandardCharsets.US_ASCII);
+    byte[] result = new byte[PAYLOAD_SIZE];
+    for (int i = 0; i < result.length; i++)
+      result[i] = line[i % line.length];
+    return result;
+  }
+
+  private static byte[] createBinary()
+  {
+    byte[] result = new byte[PAYLOAD_SIZE];
+    new Random(42).nextBytes(result);
+    return result;
+  }
+
+  private static long getAllocatedBytes()
+  {
+    com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private static long measure(String name, Implementation implementation, byte[] payload) throws IOException
+  {
+    for (int i = 0; i < WARMUP_ITERATIONS; i++)
+      implementation.run(payload);
+
+    Log.checksum = 0;
+    Log.length = 0;
+    long allocated = getAllocatedBytes();
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++)
+      implementation.run(payload);
+    long time = System.nanoTime() - start;
+    allocated = getAllocatedBytes() - allocated;
+
+    System.out.println(String.format("%-22s %10.2f ms/op %12.1f MiB allocated/op",
+        name, time / 1e6 / ITERATIONS, allocated / 1048576.0 / ITERATIONS));
+    return Log.checksum;
+  }
+
+  public static void main(String[] args) throws IOException
+  {
+    String[] names = {"text", "binary"};
+    byte[][] payloads = {createText(), createBinary()};
+    boolean identical = true;
+    for (int i = 0; i < payloads.length; i++)
+    {
+      long legacy = measure(names[i] + " legacy", LEGACY, payloads[i]);
+      long current = measure(names[i] + " lookup table", LOOKUP_TABLE, payloads[i]);
+      if (legacy != current)
+      {
+        System.err.println("Logged output differs for " + names[i] + " payload.");
+        identical = false;
+      }
+    }
+    if (!identical)
+      System.exit(1);
+  }
+}
@@ -0,0 +1,594 @@
+/*
+ * This Source Code is subject to the terms of the Mozilla Public License
+ * version 2.0 (the "License"). You can obtain a copy of the License at
+ * http://mozilla.org/MPL/2.0/.
+ */
+
+package info.palant.apkInstrumentation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import pxb.android.axml.AxmlReader;
+import pxb.android.axml.AxmlVisitor;
+import pxb.android.axml.NodeVisitor;
+
+public class APKSigner
+{
+  final static int CHUNK_SIZE = 1024*1024;
+
+  final static int V2_BLOCK_ID = 0x7109871a;
+  final static int V3_BLOCK_ID = 0xf05368c0;
+  final static int STRIPPING_PROTECTION_ID = 0xbeeff00d;
+  final static byte[] SIGNING_BLOCK_MAGIC = "APK Sig Block 42".getBytes(StandardCharsets.US_ASCII);
+
+  // Same as apksigner: v3 signature is only used by Android 9 and above
+  final static int V3_MIN_SDK = 28;
+  final static int V3_MAX_SDK = Integer.MAX_VALUE;
+
+  // Same as apksigner: JAR signatures only support SHA-1 before Android 4.3
+  final static int V1_SHA256_MIN_SDK = 18;
+  final static String DIGEST_SHA1 = "SHA-1";
+  final static String DIGEST_SHA256 = "SHA-256";
+
+  final static String MANIFEST_FILE = "AndroidManifest.xml";
+  final static int ATTR_MIN_SDK_VERSION = 0x0101020c;
+
+  final static int ALGORITHM_RSA_PKCS1_SHA256 = 0x0103;
+  final static int ALGORITHM_ECDSA_SHA256 = 0x0201;
+
+  final static String V1_SIGNER_NAME = "CERT";
+  final static String MANIFEST_NAME = "META-INF/MANIFEST.MF";
+
+  // DER encoded OIDs for the PKCS #7 signature
+  final static byte[] OID_SIGNED_DATA = {0x06, 0x09, 0x2A, (byte)0x86, 0x48, (byte)0x86, (byte)0xF7, 0x0D, 0x01, 0x07, 0x02};
+  final static byte[] OID_DATA = {0x06, 0x09, 0x2A, (byte)0x86, 0x48, (byte)0x86, (byte)0xF7, 0x0D, 0x01, 0x07, 0x01};
+  final static byte[] OID_SHA1 = {0x06, 0x05, 0x2B, 0x0E, 0x03, 0x02, 0x1A};
+  final static byte[] OID_SHA256 = {0x06, 0x09, 0x60, (byte)0x86, 0x48, 0x01, 0x65, 0x03, 0x04, 0x02, 0x01};
+  final static byte[] OID_RSA = {0x06, 0x09, 0x2A, (byte)0x86, 0x48, (byte)0x86, (byte)0xF7, 0x0D, 0x01, 0x01, 0x01};
+  final static byte[] OID_EC = {0x06, 0x07, 0x2A, (byte)0x86, 0x48, (byte)0xCE, 0x3D, 0x02, 0x01};
+  final static byte[] DER_NULL = {0x05, 0x00};
+
+  private final PrivateKey key;
+  private final List<X509Certificate> certificates = new ArrayList<X509Certificate>();
+  private final String signatureAlgorithm;
+  private final int signatureAlgorithmId;
+  private final String v1Extension;
+  private final byte[] v1AlgorithmOID;
+  private final boolean v1Enabled;
+
+  public APKSigner(String keystore, String keypass, boolean v1Enabled) throws IOException
+  {
+    char[] password = keypass.toCharArray();
+    try
+    {
+      // Like apksigner, use the first key in the key store
+      KeyStore store = KeyStore.getInstance(new File(keystore), password);
+      String alias = null;
+      for (Enumeration<String> aliases = store.aliases(); aliases.hasMoreElements(); )
+      {
+        String candidate = aliases.nextElement();
+        if (store.isKeyEntry(candidate))
+        {
+          alias = candidate;
+          break;
+        }
+      }
+      if (alias == null)
+        throw new RuntimeException("Key store " + keystore + " doesn't contain any keys");
+
+      this.key = (PrivateKey)store.getKey(alias, password);
+      for (Certificate certificate: store.getCertificateChain(alias))
+        this.certificates.add((X509Certificate)certificate);
+    }
+    catch (GeneralSecurityException e)
+    {
+      throw new RuntimeException("Failed loading signing key from " + keystore, e);
+    }
+
+    if (this.key.getAlgorithm().equals("RSA"))
+    {
+      this.signatureAlgorithm = "SHA256withRSA";
+      this.signatureAlgorithmId = ALGORITHM_RSA_PKCS1_SHA256;
+      this.v1Extension = ".RSA";
+      this.v1AlgorithmOID = concat(OID_RSA, DER_NULL);
+    }
+    else if (this.key.getAlgorithm().equals("EC"))
+    {
+      this.signatureAlgorithm = "SHA256withECDSA";
+      this.signatureAlgorithmId = ALGORITHM_ECDSA_SHA256;
+      this.v1Extension = ".EC";
+      this.v1AlgorithmOID = OID_EC;
+    }
+    else
+      throw new RuntimeException("Unsupported signing key algorithm " + this.key.getAlgorithm());
+
+    this.v1Enabled = v1Enabled;
+  }
+
+  public boolean isV1Enabled()
+  {
+    return this.v1Enabled;
+  }
+
+  public static boolean isSignatureFile(String name)
+  {
+    if (!name.startsWith("META-INF/") || name.indexOf('/', "META-INF/".length()) >= 0)
+      return false;
+
+    String upper = name.toUpperCase();
+    return upper.equals(MANIFEST_NAME) || upper.endsWith(".SF") ||
+        upper.endsWith(".RSA") || upper.endsWith(".DSA") || upper.endsWith(".EC") ||
+        upper.startsWith("META-INF/SIG-");
+  }
+
+  // Like apksigner, SHA-1 is used for JAR signatures if the APK supports
+  // Android versions before 4.3. These don't support ECDSA with SHA-1.
+  public String getV1DigestAlgorithm(int minSdkVersion)
+  {
+    if (minSdkVersion >= V1_SHA256_MIN_SDK)
+      return DIGEST_SHA256;
+    if (!this.key.getAlgorithm().equals("RSA"))
+      throw new RuntimeException("Signing APKs with minSdkVersion " + minSdkVersion + " requires an RSA key, ECDSA is only supported with minSdkVersion " + V1_SHA256_MIN_SDK + " and above");
+    return DIGEST_SHA1;
+  }
+
+  // Missing minSdkVersion defaults to 1, codenames of preview versions are
+  // considered newer than any release.
+  public static int getMinSdkVersion(ZipReader apk) throws IOException
+  {
+    ZipReader.Entry entry = apk.getEntry(MANIFEST_FILE);
+    if (entry == null)
+      throw new IOException("APK doesn't contain " + MANIFEST_FILE);
+
+    int[] result = {1};
+    AxmlReader reader = new AxmlReader(apk.readData(entry));
+    AxmlVisitor visitor = new AxmlVisitor()
+    {
+      @Override
+      public NodeVisitor child(String ns, String name)
+      {
+        if (!"manifest".equals(name))
+          return null;
+
+        return new NodeVisitor()
+        {
+          @Override
+          public NodeVisitor child(String ns, String name)
+          {
+            if (!"uses-sdk".equals(name))
+              return null;
+
+            return new NodeVisitor()
+            {
+              @Override
+              public void attr(String ns, String name, int resourceId, int type, Object value)
+              {
+                if (resourceId != ATTR_MIN_SDK_VERSION && !"minSdkVersion".equals(name))
+                  return;
+
+                if (value instanceof Integer)
+                  result[0] = (Integer)value;
+                else
+                {
+                  try
+                  {
+                    result[0] = Integer.parseInt(String.valueOf(value));
+                  }
+                  catch (NumberFormatException e)
+                  {
+                    result[0] = Integer.MAX_VALUE;
+                  }
+                }
+              }
+            };
+          }
+        };
+      }
+    };
+
+    try
+    {
+      reader.accept(visitor);
+    }
+    catch (RuntimeException e)
+    {
+      throw new IOException("Failed parsing " + MANIFEST_FILE, e);
+    }
+    return result[0];
+  }
+
+  private static MessageDigest getDigest(String algorithm)
+  {
+    try
+    {
+      return MessageDigest.getInstance(algorithm);
+    }
+    catch (NoSuchAlgorithmException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public static byte[] digest(String algorithm, InputStream input) throws IOException
+  {
+    MessageDigest digest = getDigest(algorithm);
+    byte[] buffer = new byte[1024*64];
+    int numBytes;
+    while ((numBytes = input.read(buffer)) != -1)
+      digest.update(buffer, 0, numBytes);
+    input.close();
+    return digest.digest();
+  }
+
+  public static byte[] digest(String algorithm, byte[] data)
+  {
+    return getDigest(algorithm).digest(data);
+  }
+
+  private byte[] sign(String algorithm, byte[] data)
+  {
+    try
+    {
+      Signature signature = Signature.getInstance(algorithm);
+      signature.initSign(this.key);
+      signature.update(data);
+      return signature.sign();
+    }
+    catch (GeneralSecurityException e)
+    {
+      throw new RuntimeException("Failed signing APK", e);
+    }
+  }
+
+  private byte[] getEncodedCertificate(X509Certificate certificate)
+  {
+    try
+    {
+      return certificate.getEncoded();
+    }
+    catch (GeneralSecurityException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static byte[] concat(byte[]... parts)
+  {
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    for (byte[] part: parts)
+      result.write(part, 0, part.length);
+    return result.toByteArray();
+  }
+
+  private static void writeManifestLine(ByteArrayOutputStream output, String line)
+  {
+    // Lines are limited to 72 bytes, longer lines continue after a space
+    byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+    int start = 0;
+    int limit = 72;
+    while (bytes.length - start > limit)
+    {
+      int end = start + limit;
+      while ((bytes[end] & 0xC0) == 0x80)
+        end--;
+      output.write(bytes, start, end - start);
+      output.write('\r');
+      output.write('\n');
+      output.write(' ');
+      start = end;
+      limit = 71;
+    }
+    output.write(bytes, start, bytes.length - start);
+    output.write('\r');
+    output.write('\n');
+  }
+
+  private static byte[] getManifestSection(String... lines)
+  {
+    ByteArrayOutputStream section = new ByteArrayOutputStream();
+    for (String line: lines)
+      writeManifestLine(section, line);
+    writeManifestLine(section, "");
+    return section.toByteArray();
+  }
+
+  // Entry digests have to be calculated with the algorithm returned by
+  // getV1DigestAlgorithm()
+  public Map<String,byte[]> createV1Files(Map<String,byte[]> entryDigests, String digestAlgorithm)
+  {
+    Base64.Encoder base64 = Base64.getEncoder();
+    String digestName = (digestAlgorithm.equals(DIGEST_SHA1) ? "SHA1" : digestAlgorithm);
+
+    ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+    byte[] mainSection = getManifestSection(
+      "Manifest-Version: 1.0",
+      "Created-By: apk-instrumentation"
+    );
+    manifest.write(mainSection, 0, mainSection.length);
+
+    ByteArrayOutputStream signatureFile = new ByteArrayOutputStream();
+    List<byte[]> signatureSections = new ArrayList<byte[]>();
+    for (Map.Entry<String,byte[]> entry: entryDigests.entrySet())
+    {
+      byte[] section = getManifestSection(
+        "Name: " + entry.getKey(),
+        digestName + "-Digest: " + base64.encodeToString(entry.getValue())
+      );
+      manifest.write(section, 0, section.length);
+
+      signatureSections.add(getManifestSection(
+        "Name: " + entry.getKey(),
+        digestName + "-Digest: " + base64.encodeToString(digest(digestAlgorithm, section))
+      ));
+    }
+
+    // X-Android-APK-Signed tells Android to reject the APK if the v2/v3
+    // signatures were stripped.
+    byte[] manifestBytes = manifest.toByteArray();
+    byte[] signatureMain = getManifestSection(
+      "Signature-Version: 1.0",
+      "Created-By: 1.0 (Android)",
+      digestName + "-Digest-Manifest: " + base64.encodeToString(digest(digestAlgorithm, manifestBytes)),
+      "X-Android-APK-Signed: 2, 3"
+    );
+    signatureFile.write(signatureMain, 0, signatureMain.length);
+    for (byte[] section: signatureSections)
+      signatureFile.write(section, 0, section.length);
+    byte[] signatureBytes = signatureFile.toByteArray();
+
+    Map<String,byte[]> result = new LinkedHashMap<String,byte[]>();
+    result.put(MANIFEST_NAME, manifestBytes);
+    result.put("META-INF/" + V1_SIGNER_NAME + ".SF", signatureBytes);
+    result.put("META-INF/" + V1_SIGNER_NAME + this.v1Extension, this.createPKCS7(signatureBytes, digestAlgorithm));
+    return result;
+  }
+
+  private static byte[] der(int tag, byte[]... contents)
+  {
+    byte[] data = concat(contents);
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    result.write(tag);
+    if (data.length < 0x80)
+      result.write(data.length);
+    else
+    {
+      int numBytes = 0;
+      for (int length = data.length; length > 0; length >>= 8)
+        numBytes++;
+      result.write(0x80 | numBytes);
+      for (int i = numBytes - 1; i >= 0; i--)
+        result.write(data.length >> (i * 8));
+    }
+    result.write(data, 0, data.length);
+    return result.toByteArray();
+  }
+
+  private byte[] createPKCS7(byte[] data, String digest)
+  {
+    // Detached SignedData without signed attributes, this is what Android
+    // expects in JAR signatures. Only RSA keys can be used with SHA-1.
+    X509Certificate certificate = this.certificates.get(0);
+    boolean sha1 = digest.equals(DIGEST_SHA1);
+    byte[] digestAlgorithm = der(0x30, sha1 ? OID_SHA1 : OID_SHA256, DER_NULL);
+
+    byte[][] encodedCertificates = new byte[this.certificates.size()][];
+    for (int i = 0; i < encodedCertificates.length; i++)
+      encodedCertificates[i] = this.getEncodedCertificate(this.certificates.get(i));
+
+    byte[] signerInfo = der(0x30,
+      der(0x02, new byte[] {1}),
+      der(0x30,
+        certificate.getIssuerX500Principal().getEncoded(),
+        der(0x02, certificate.getSerialNumber().toByteArray())
+      ),
+      digestAlgorithm,
+      der(0x30, this.v1AlgorithmOID),
+      der(0x04, this.sign(sha1 ? "SHA1withRSA" : this.signatureAlgorithm, data))
+    );
+
+    byte[] signedData = der(0x30,
+      der(0x02, new byte[] {1}),
+      der(0x31, digestAlgorithm),
+      der(0x30, OID_DATA),
+      der(0xA0, encodedCertificates),
+      der(0x31, signerInfo)
+    );
+
+    return der(0x30, OID_SIGNED_DATA, der(0xA0, signedData));
+  }
+
+  private static byte[] getChunkDigest(byte[] data, int offset, int length)
+  {
+    MessageDigest digest = getDigest(DIGEST_SHA256);
+    digest.update((byte)0xa5);
+    digest.update(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(length).array());
+    digest.update(data, offset, length);
+    return digest.digest();
+  }
+
+  // Passes data through while calculating v2 chunk digests in the background
+  public static class ContentDigest extends FilterOutputStream
+  {
+    // Shared by all APKs being signed, daemon threads won't keep the JVM running
+    private static final ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+      Thread thread = new Thread(runnable);
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    private final List<Future<byte[]>> chunks = new ArrayList<Future<byte[]>>();
+    private byte[] buffer = new byte[CHUNK_SIZE];
+    private int bufferSize = 0;
+    private boolean finished = false;
+
+    public ContentDigest(OutputStream out)
+    {
+      super(out);
+    }
+
+    private void submitChunk()
+    {
+      final byte[] data = this.buffer;
+      final int length = this.bufferSize;
+      this.chunks.add(executor.submit(() -> getChunkDigest(data, 0, length)));
+      this.buffer = new byte[CHUNK_SIZE];
+      this.bufferSize = 0;
+    }
+
+    private void update(byte[] b, int off, int len)
+    {
+      while (len > 0)
+      {
+        int numBytes = Math.min(len, CHUNK_SIZE - this.bufferSize);
+        System.arraycopy(b, off, this.buffer, this.bufferSize, numBytes);
+        this.bufferSize += numBytes;
+        off += numBytes;
+        len -= numBytes;
+        if (this.bufferSize == CHUNK_SIZE)
+          this.submitChunk();
+      }
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+      this.out.write(b);
+      if (!this.finished)
+        this.update(new byte[] {(byte)b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+      this.out.write(b, off, len);
+      if (!this.finished)
+        this.update(b, off, len);
+    }
+
+    // Stops digesting, any data written afterwards is merely passed through
+    public List<byte[]> finish()
+    {
+      if (this.bufferSize > 0)
+        this.submitChunk();
+      this.finished = true;
+      this.buffer = null;
+
+      List<byte[]> result = new ArrayList<byte[]>();
+      try
+      {
+        for (Future<byte[]> chunk: this.chunks)
+          result.add(chunk.get());
+      }
+      catch (InterruptedException|ExecutionException e)
+      {
+        throw new RuntimeException("Failed calculating APK digest", e);
+      }
+      return result;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      // Digests are no longer needed if the output is closed without finishing
+      for (Future<byte[]> chunk: this.chunks)
+        chunk.cancel(false);
+      super.close();
+    }
+  }
+
+  private static List<byte[]> getChunkDigests(byte[] data)
+  {
+    List<byte[]> result = new ArrayList<byte[]>();
+    for (int offset = 0; offset < data.length; offset += CHUNK_SIZE)
+      result.add(getChunkDigest(data, offset, Math.min(CHUNK_SIZE, data.length - offset)));
+    return result;
+  }
+
+  private static byte[] lengthPrefixed(byte[]... contents)
+  {
+    byte[] data = concat(contents);
+    return concat(int32(data.length), data);
+  }
+
+  private static byte[] int32(int value)
+  {
+    return ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array();
+  }
+
+  private static byte[] int64(long value)
+  {
+    return ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(value).array();
+  }
+
+  private byte[] createSigner(byte[] digest, boolean v3)
+  {
+    byte[][] encodedCertificates = new byte[this.certificates.size()][];
+    for (int i = 0; i < encodedCertificates.length; i++)
+      encodedCertificates[i] = lengthPrefixed(this.getEncodedCertificate(this.certificates.get(i)));
+
+    byte[] digests = lengthPrefixed(lengthPrefixed(int32(this.signatureAlgorithmId), lengthPrefixed(digest)));
+    byte[] certificates = lengthPrefixed(encodedCertificates);
+    byte[] sdkRange = (v3 ? concat(int32(V3_MIN_SDK), int32(V3_MAX_SDK)) : new byte[0]);
+
+    // v2 signature announces that a v3 signature is present as well, so that
+    // it cannot be stripped.
+    byte[] attributes = (v3 ? lengthPrefixed() : lengthPrefixed(lengthPrefixed(int32(STRIPPING_PROTECTION_ID), int32(3))));
+
+    byte[] signedData = concat(digests, certificates, sdkRange, attributes);
+    byte[] signatures = lengthPrefixed(lengthPrefixed(int32(this.signatureAlgorithmId), lengthPrefixed(this.sign(this.signatureAlgorithm, signedData))));
+    byte[] publicKey = this.certificates.get(0).getPublicKey().getEncoded();
+    return lengthPrefixed(lengthPrefixed(lengthPrefixed(signedData), sdkRange, signatures, lengthPrefixed(publicKey)));
+  }
+
+  public byte[] createSigningBlock(List<byte[]> entryChunks, byte[] centralDirectory, byte[] endOfCentralDirectory)
+  {
+    // End of central directory record is digested as if there were no signing
+    // block, it should point to the start of the signing block already.
+    List<byte[]> chunks = new ArrayList<byte[]>(entryChunks);
+    chunks.addAll(getChunkDigests(centralDirectory));
+    chunks.addAll(getChunkDigests(endOfCentralDirectory));
+
+    MessageDigest digest = getDigest(DIGEST_SHA256);
+    digest.update((byte)0x5a);
+    digest.update(int32(chunks.size()));
+    for (byte[] chunk: chunks)
+      digest.update(chunk);
+    byte[] contentDigest = digest.digest();
+
+    byte[] v2 = this.createSigner(contentDigest, false);
+    byte[] v3 = this.createSigner(contentDigest, true);
+    byte[] pairs = concat(
+      int64(4 + v2.length), int32(V2_BLOCK_ID), v2,
+      int64(4 + v3.length), int32(V3_BLOCK_ID), v3
+    );
+
+    long size = pairs.length + 8 + SIGNING_BLOCK_MAGIC.length;
+    return concat(int64(size), pairs, int64(size), SIGNING_BLOCK_MAGIC);
+  }
+}
@@ -6,14 +6,14 @@
 
 package info.palant.apkInstrumentation;
 
-import java.util.Map;
 import java.util.Properties;
 
 import soot.Body;
-import soot.BodyTransformer;
+import soot.SootMethod;
+import soot.Unit;
 import soot.jimple.AssignStmt;
 
-public class AssignmentRemover extends BodyTransformer
+public class AssignmentRemover extends UnitTransformer
 {
   private MethodConfig filter;
   private String type;
@@ -32,21 +32,39 @@ public class AssignmentRemover extends BodyTransformer
   }
 
   @Override
-  protected void internalTransform(Body body, String phaseName, Map<String, String> options)
+  protected Visitor begin(Body body)
   {
     if (this.filter != null && this.filter.get(body.getMethod()) == null)
-      return;
+      return null;
 
-    body.getUnits().removeIf(unit -> {
-      if (unit instanceof AssignStmt)
+    return new Visitor()
+    {
+      private boolean changed = false;
+
+      @Override
+      public boolean visit(Unit unit, SootMethod method)
       {
-        String typeName = ((AssignStmt)unit).getLeftOp().getType().toString();
-        if (typeName.equals(this.type))
-          return true;
+        if (unit instanceof AssignStmt)
+        {
+          String typeName = ((AssignStmt)unit).getLeftOp().getType().toString();
+          if (typeName.equals(AssignmentRemover.this.type))
+          {
+            this.changed = true;
+            return false;
+          }
+        }
+        return true;
       }
-      return false;
-    });
 
-    body.validate();
+      @Override
+      public void finish()
+      {
+        if (this.changed)
+        {
+          body.validate();
+          ModifiedTag.mark(body.getMethod().getDeclaringClass());
+        }
+      }
+    };
   }
 }
@@ -0,0 +1,76 @@
+/*
+ * This Source Code is subject to the terms of the Mozilla Public License
+ * version 2.0 (the "License"). You can obtain a copy of the License at
+ * http://mozilla.org/MPL/2.0/.
+ */
+
+package info.palant.apkInstrumentation;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import soot.Body;
+import soot.BodyTransformer;
+import soot.SootMethod;
+import soot.Unit;
+import soot.jimple.InvokeExpr;
+
+// Applies all unit transformers to a body in a single pass. Each unit is
+// decoded once and handed to the transformers in the order they were added.
+public class BodyDispatcher extends BodyTransformer
+{
+  private final List<UnitTransformer> transformers;
+
+  public BodyDispatcher(List<UnitTransformer> transformers)
+  {
+    this.transformers = transformers;
+  }
+
+  public static void transform(Body body, List<UnitTransformer> transformers)
+  {
+    List<UnitTransformer.Visitor> visitors = new ArrayList<UnitTransformer.Visitor>();
+    for (UnitTransformer transformer: transformers)
+    {
+      UnitTransformer.Visitor visitor = transformer.begin(body);
+      if (visitor != null)
+        visitors.add(visitor);
+    }
+
+    if (visitors.isEmpty())
+      return;
+
+    Iterator<Unit> iterator = body.getUnits().iterator();
+    while (iterator.hasNext())
+    {
+      Unit unit = iterator.next();
+      InvokeExpr invocation = UnitParser.getInvocation(unit);
+      SootMethod method = (invocation != null ? SceneAccess.resolve(invocation.getMethodRef()) : null);
+      for (UnitTransformer.Visitor visitor: visitors)
+      {
+        if (!visitor.visit(unit, method))
+        {
+          iterator.remove();
+          break;
+        }
+
+        // Transformers can replace the invocation, e.g. CallRemover
+        if (UnitParser.getInvocation(unit) != invocation)
+        {
+          invocation = UnitParser.getInvocation(unit);
+          method = (invocation != null ? SceneAccess.resolve(invocation.getMethodRef()) : null);
+        }
+      }
+    }
+
+    for (UnitTransformer.Visitor visitor: visitors)
+      visitor.finish();
+  }
+
+  @Override
+  protected void internalTransform(Body body, String phaseName, Map<String, String> options)
+  {
+    transform(body, this.transformers);
+  }
+}
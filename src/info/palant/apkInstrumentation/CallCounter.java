@@ -0,0 +1,123 @@
+/*
+ * This Source Code is subject to the terms of the Mozilla Public License
+ * version 2.0 (the "License"). You can obtain a copy of the License at
+ * http://mozilla.org/MPL/2.0/.
+ */
+
+package info.palant.apkInstrumentation;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import soot.Body;
+import soot.RefType;
+import soot.Scene;
+import soot.SceneTransformer;
+import soot.SootClass;
+import soot.SootMethod;
+import soot.Unit;
+import soot.jimple.IntConstant;
+import soot.jimple.StringConstant;
+
+public class CallCounter extends UnitTransformer
+{
+  final static String COUNTER_CLASS = "info.palant.apkInstrumentation.Counter";
+  private final MethodConfig filter;
+  private final MethodConfig methodConfig;
+
+  public CallCounter(Properties config)
+  {
+    String method = config.getProperty("CallCounter.method");
+    if (method == null)
+      throw new RuntimeException("Please add CallCounter.method option to config file.");
+    this.methodConfig = new MethodConfig(method, "");
+
+    String filterSpec = config.getProperty("CallCounter.filter");
+    if (filterSpec != null)
+      this.filter = new MethodConfig(filterSpec, "");
+    else
+      this.filter = null;
+  }
+
+  // Counter class has to be added to each scene before any bodies are
+  // transformed.
+  public static class Injector extends SceneTransformer
+  {
+    private final String tag;
+    private final int interval;
+    private final boolean logToFile;
+
+    public Injector(Properties config)
+    {
+      this.tag = config.getProperty("CallCounter.tag", "CallCounter");
+      this.interval = Integer.parseInt(config.getProperty("CallCounter.interval", "10"));
+      if (this.interval < 0)
+        throw new RuntimeException("CallCounter.interval option cannot be negative");
+      this.logToFile = LogSinkInjector.FILE_CLASS.equals(LogSinkInjector.getSink(config, "CallCounter"));
+    }
+
+    @Override
+    protected void internalTransform(String phaseName, Map<String, String> options)
+    {
+      ClassInjector.injectClass(COUNTER_CLASS);
+      ClassInjector.setStaticField(COUNTER_CLASS, "tag", StringConstant.v(this.tag));
+      ClassInjector.setStaticField(COUNTER_CLASS, "interval", IntConstant.v(this.interval));
+      if (this.logToFile)
+        ClassInjector.setStaticField(COUNTER_CLASS, "logToFile", IntConstant.v(1));
+    }
+  }
+
+  // Call-site IDs are only known after all bodies have been transformed, the
+  // counter gets the names of all call sites with their IDs then.
+  public static void setSiteNames(CallSites sites)
+  {
+    SootClass cls = Scene.v().getSootClassUnsafe(COUNTER_CLASS, false);
+    if (cls == null || !cls.isApplicationClass())
+      return;
+
+    String[] names = sites.getNames("CallCounter");
+    ClassInjector.setStaticField(COUNTER_CLASS, "siteNames", StringConstant.v(String.join("\n", names)));
+  }
+
+  @Override
+  protected Visitor begin(Body body)
+  {
+    // Calls made by injected classes aren't counted
+    if (ClassInjector.isInjected(body.getMethod().getDeclaringClass()))
+      return null;
+    if (this.filter != null && this.filter.get(body.getMethod()) == null)
+      return null;
+
+    return new Visitor()
+    {
+      private final Map<Unit,SootMethod> calls = new LinkedHashMap<Unit,SootMethod>();
+
+      @Override
+      public boolean visit(Unit unit, SootMethod method)
+      {
+        if (method != null && CallCounter.this.methodConfig.get(method) != null)
+          this.calls.put(unit, method);
+        return true;
+      }
+
+      @Override
+      public void finish()
+      {
+        if (this.calls.isEmpty())
+          return;
+
+        // Counting before the call, so that calls throwing an exception are
+        // counted as well.
+        for (Map.Entry<Unit,SootMethod> entry: this.calls.entrySet())
+        {
+          UnitSequence units = new UnitSequence(body);
+          units.call(RefType.v(COUNTER_CLASS), "increment", CallSites.v().add("CallCounter", body, entry.getKey(), entry.getValue().getSignature(), ""));
+          units.insertBefore(entry.getKey());
+        }
+        body.validate();
+        ModifiedTag.mark(body.getMethod().getDeclaringClass());
+      }
+    };
+  }
+}
@@ -0,0 +1,409 @@
+/*
+ * This Source Code is subject to the terms of the Mozilla Public License
+ * version 2.0 (the "License"). You can obtain a copy of the License at
+ * http://mozilla.org/MPL/2.0/.
+ */
+
+package info.palant.apkInstrumentation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import soot.Body;
+import soot.Scene;
+import soot.SootClass;
+import soot.SootMethod;
+import soot.Type;
+import soot.Unit;
+import soot.jimple.InvokeExpr;
+import soot.tagkit.BytecodeOffsetTag;
+
+// Index of all call sites in an APK, allowing to check which code a config
+// would instrument without loading the APK into Soot again. The file starts
+// with a string table, followed by the class hierarchy, methods and the call
+// sites grouped by the method called.
+public class CallIndex
+{
+  static final byte[] MAGIC = {'A', 'P', 'K', 'I', 'D', 'X', '0', '1'};
+
+  static final int METHOD_HAS_BODY = 1;
+  static final int SITE_ASSIGNED = 1;
+
+  static class Method
+  {
+    final String className;
+    final String name;
+    final String returnType;
+    final List<String> parameterTypes;
+    final boolean hasBody;
+
+    Method(String className, String name, String returnType, List<String> parameterTypes, boolean hasBody)
+    {
+      this.className = className;
+      this.name = name;
+      this.returnType = returnType;
+      this.parameterTypes = parameterTypes;
+      this.hasBody = hasBody;
+    }
+
+    Method(SootMethod method)
+    {
+      this.className = method.getDeclaringClass().getName();
+      this.name = method.getName();
+      this.returnType = method.getReturnType().toString();
+      this.parameterTypes = new ArrayList<String>();
+      for (Type type: method.getParameterTypes())
+        this.parameterTypes.add(type.toString());
+      this.hasBody = method.isConcrete() && method.getDeclaringClass().isApplicationClass();
+    }
+
+    String getSignature()
+    {
+      return "<" + this.className + ": " + this.returnType + " " + this.name + "(" + String.join(",", this.parameterTypes) + ")>";
+    }
+  }
+
+  static class Site
+  {
+    final Method caller;
+    final Method callee;
+    final int offset;
+    final boolean assigned;
+
+    Site(Method caller, Method callee, int offset, boolean assigned)
+    {
+      this.caller = caller;
+      this.callee = callee;
+      this.offset = offset;
+      this.assigned = assigned;
+    }
+  }
+
+  private final Map<String,String> superclasses;
+  private final List<Method> methods;
+  private final Map<Method,List<Site>> sites;
+
+  private CallIndex(Map<String,String> superclasses, List<Method> methods, Map<Method,List<Site>> sites)
+  {
+    this.superclasses = superclasses;
+    this.methods = methods;
+    this.sites = sites;
+  }
+
+  // Collects call sites from all application classes, bodies are released
+  // once a class is done so that these don't accumulate in memory.
+  public static void build(File output, int threads) throws IOException
+  {
+    List<SootClass> classes = new ArrayList<SootClass>(Scene.v().getApplicationClasses());
+    List<List<Site>> classSites = new ArrayList<List<Site>>();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try
+    {
+      List<Future<List<Site>>> results = new ArrayList<Future<List<Site>>>();
+      for (SootClass cls: classes)
+        results.add(executor.submit(() -> collectSites(cls)));
+
+      for (Future<List<Site>> result: results)
+        classSites.add(result.get());
+    }
+    catch (InterruptedException e)
+    {
+      throw new RuntimeException("Interrupted while indexing classes", e);
+    }
+    catch (ExecutionException e)
+    {
+      throw new RuntimeException("Indexing classes failed", e.getCause());
+    }
+    finally
+    {
+      executor.shutdownNow();
+    }
+
+    // Merging in class order keeps the index independent of thread timing
+    Map<String,Method> methods = new LinkedHashMap<String,Method>();
+    Map<String,List<Site>> sites = new LinkedHashMap<String,List<Site>>();
+    for (SootClass cls: classes)
+      for (SootMethod method: cls.getMethods())
+        methods.put(method.getSignature(), new Method(method));
+    for (List<Site> list: classSites)
+    {
+      for (Site site: list)
+      {
+        String signature = site.callee.getSignature();
+        if (!methods.containsKey(signature))
+          methods.put(signature, site.callee);
+        if (!sites.containsKey(signature))
+          sites.put(signature, new ArrayList<Site>());
+        sites.get(signature).add(site);
+      }
+    }
+
+    Map<String,String> superclasses = new LinkedHashMap<String,String>();
+    for (Method method: methods.values())
+    {
+      SootClass cls = Scene.v().getSootClassUnsafe(method.className, false);
+      for (; cls != null && !superclasses.containsKey(cls.getName()); cls = (cls.hasSuperclass() ? cls.getSuperclass() : null))
+        superclasses.put(cls.getName(), cls.hasSuperclass() ? cls.getSuperclass().getName() : null);
+    }
+
+    write(output, superclasses, methods, sites);
+  }
+
+  private static List<Site> collectSites(SootClass cls)
+  {
+    List<Site> result = new ArrayList<Site>();
+    for (SootMethod method: cls.getMethods())
+    {
+      if (!method.isConcrete())
+        continue;
+
+      Body body = method.retrieveActiveBody();
+      Method caller = new Method(method);
+      for (Unit unit: body.getUnits())
+      {
+        InvokeExpr invocation = UnitParser.getInvocation(unit);
+        if (invocation == null)
+          continue;
+
+        int offset = -1;
+        if (unit.hasTag("BytecodeOffsetTag"))
+          offset = ((BytecodeOffsetTag)unit.getTag("BytecodeOffsetTag")).getBytecodeOffset();
+        Method callee = new Method(SceneAccess.resolve(invocation.getMethodRef()));
+        result.add(new Site(caller, callee, offset, UnitParser.isAssignment(unit)));
+      }
+      method.releaseActiveBody();
+    }
+    return result;
+  }
+
+  private static class StringTable
+  {
+    final Map<String,Integer> ids = new LinkedHashMap<String,Integer>();
+
+    int get(String str)
+    {
+      if (str == null)
+        return -1;
+
+      Integer id = this.ids.get(str);
+      if (id == null)
+      {
+        id = this.ids.size();
+        this.ids.put(str, id);
+      }
+      return id;
+    }
+  }
+
+  private static void write(File output, Map<String,String> superclasses, Map<String,Method> methods, Map<String,List<Site>> sites) throws IOException
+  {
+    // Strings are only known after everything else has been written
+    StringTable strings = new StringTable();
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    DataOutputStream data = new DataOutputStream(buffer);
+
+    data.writeInt(superclasses.size());
+    for (Map.Entry<String,String> entry: superclasses.entrySet())
+    {
+      data.writeInt(strings.get(entry.getKey()));
+      data.writeInt(strings.get(entry.getValue()));
+    }
+
+    Map<String,Integer> methodIds = new HashMap<String,Integer>();
+    data.writeInt(methods.size());
+    for (Map.Entry<String,Method> entry: methods.entrySet())
+    {
+      Method method = entry.getValue();
+      methodIds.put(entry.getKey(), methodIds.size());
+      data.writeInt(strings.get(method.className));
+      data.writeInt(strings.get(method.name));
+      data.writeInt(strings.get(method.returnType));
+      data.writeByte(method.parameterTypes.size());
+      for (String type: method.parameterTypes)
+        data.writeInt(strings.get(type));
+      data.writeByte(method.hasBody ? METHOD_HAS_BODY : 0);
+    }
+
+    data.writeInt(sites.size());
+    for (Map.Entry<String,List<Site>> entry: sites.entrySet())
+    {
+      data.writeInt(methodIds.get(entry.getKey()));
+      data.writeInt(entry.getValue().size());
+      for (Site site: entry.getValue())
+      {
+        data.writeInt(methodIds.get(site.caller.getSignature()));
+        data.writeInt(site.offset);
+        data.writeByte(site.assigned ? SITE_ASSIGNED : 0);
+      }
+    }
+    data.close();
+
+    DataOutputStream file = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output)));
+    file.write(MAGIC);
+    file.writeInt(strings.ids.size());
+    for (String str: strings.ids.keySet())
+      file.writeUTF(str);
+    buffer.writeTo(file);
+    file.close();
+  }
+
+  public static CallIndex read(File input) throws IOException
+  {
+    DataInputStream data = new DataInputStream(new BufferedInputStream(new FileInputStream(input)));
+    try
+    {
+      byte[] magic = new byte[MAGIC.length];
+      data.readFully(magic);
+      if (!Arrays.equals(magic, MAGIC))
+        throw new IOException(input + " isn't a call index written by the index action");
+
+      String[] strings = new String[data.readInt()];
+      for (int i = 0; i < strings.length; i++)
+        strings[i] = data.readUTF();
+
+      Map<String,String> superclasses = new HashMap<String,String>();
+      for (int i = data.readInt(); i > 0; i--)
+      {
+        String cls = strings[data.readInt()];
+        int superclass = data.readInt();
+        superclasses.put(cls, superclass >= 0 ? strings[superclass] : null);
+      }
+
+      List<Method> methods = new ArrayList<Method>();
+      for (int i = data.readInt(); i > 0; i--)
+      {
+        String className = strings[data.readInt()];
+        String name = strings[data.readInt()];
+        String returnType = strings[data.readInt()];
+        List<String> parameterTypes = new ArrayList<String>();
+        for (int j = data.readUnsignedByte(); j > 0; j--)
+          parameterTypes.add(strings[data.readInt()]);
+        boolean hasBody = (data.readByte() & METHOD_HAS_BODY) != 0;
+        methods.add(new Method(className, name, returnType, parameterTypes, hasBody));
+      }
+
+      Map<Method,List<Site>> sites = new LinkedHashMap<Method,List<Site>>();
+      for (int i = data.readInt(); i > 0; i--)
+      {
+        Method callee = methods.get(data.readInt());
+        List<Site> list = new ArrayList<Site>();
+        for (int j = data.readInt(); j > 0; j--)
+        {
+          Method caller = methods.get(data.readInt());
+          int offset = data.readInt();
+          boolean assigned = (data.readByte() & SITE_ASSIGNED) != 0;
+          list.add(new Site(caller, callee, offset, assigned));
+        }
+        sites.put(callee, list);
+      }
+      return new CallIndex(superclasses, methods, sites);
+    }
+    finally
+    {
+      data.close();
+    }
+  }
+
+  private boolean matches(MethodConfig config, Method method)
+  {
+    List<String> hierarchy = new ArrayList<String>();
+    for (String cls = method.className; cls != null; cls = this.superclasses.get(cls))
+      hierarchy.add(cls);
+    return config.get(hierarchy, method.name, MethodConfig.getSignatureKey(method.name, method.parameterTypes)) != null;
+  }
+
+  // Returns call sites where the callee matches the config and the caller
+  // matches the filter (if any), optionally only those assigning the result.
+  private List<Site> getSites(MethodConfig config, MethodConfig filter, boolean assignedOnly)
+  {
+    List<Site> result = new ArrayList<Site>();
+    for (Map.Entry<Method,List<Site>> entry: this.sites.entrySet())
+    {
+      if (!this.matches(config, entry.getKey()))
+        continue;
+
+      for (Site site: entry.getValue())
+        if ((!assignedOnly || site.assigned) && (filter == null || this.matches(filter, site.caller)))
+          result.add(site);
+    }
+    return result;
+  }
+
+  // Returns methods with a body in the APK that match the config (if any)
+  private List<Method> getMethods(MethodConfig config)
+  {
+    List<Method> result = new ArrayList<Method>();
+    for (Method method: this.methods)
+      if (method.hasBody && (config == null || this.matches(config, method)))
+        result.add(method);
+    return result;
+  }
+
+  // Lists call sites of matching methods: caller, callee and bytecode offset,
+  // separated by tabs like in the call-site mapping file.
+  public void printCallers(MethodConfig config, PrintStream output)
+  {
+    for (Site site: this.getSites(config, null, false))
+      output.println(site.caller.getSignature() + "\t" + site.callee.getSignature() + "\t" + site.offset);
+  }
+
+  public void printMethods(MethodConfig config, PrintStream output)
+  {
+    for (Method method: this.getMethods(config))
+      output.println(method.getSignature());
+  }
+
+  private static MethodConfig getFilter(Properties config, String component)
+  {
+    String filterSpec = config.getProperty(component + ".filter");
+    return (filterSpec != null ? new MethodConfig(filterSpec, "") : null);
+  }
+
+  private static MethodConfig getMethodOption(Properties config, String component)
+  {
+    String method = config.getProperty(component + ".method");
+    if (method == null)
+      throw new RuntimeException("Please add " + component + ".method option to config file.");
+    return new MethodConfig(method, "");
+  }
+
+  // Counts what the components enabled in the config would instrument, using
+  // the same rules as the components themselves. Code added by one component
+  // isn't seen by the others here.
+  public void printCounts(Properties config, PrintStream output)
+  {
+    if (config.getProperty("MethodLogger.enabled") != null)
+      output.println("MethodLogger: " + this.getMethods(new MethodConfig(config, "MethodLogger.")).size() + " methods");
+    if (config.getProperty("AssignmentRemover.enabled") != null)
+      output.println("AssignmentRemover: not covered by the index");
+    if (config.getProperty("CallRemover.enabled") != null)
+      output.println("CallRemover: " + this.getSites(getMethodOption(config, "CallRemover"), getFilter(config, "CallRemover"), false).size() + " call sites");
+    if (config.getProperty("CallCounter.enabled") != null)
+      output.println("CallCounter: " + this.getSites(getMethodOption(config, "CallCounter"), getFilter(config, "CallCounter"), false).size() + " call sites");
+    if (config.getProperty("CallLogger.enabled") != null)
+      output.println("CallLogger: " + this.getSites(new MethodConfig(config, "CallLogger."), getFilter(config, "CallLogger"), false).size() + " call sites");
+    if (config.getProperty("StreamLogger.enabled") != null)
+      output.println("StreamLogger: " + this.getSites(new MethodConfig(config, "StreamLogger."), getFilter(config, "StreamLogger"), true).size() + " call sites");
+    if (config.getProperty("MethodProfiler.enabled") != null)
+      output.println("MethodProfiler: " + this.getMethods(getFilter(config, "MethodProfiler")).size() + " methods");
+  }
+}
@@ -6,19 +6,24 @@
 
 package info.palant.apkInstrumentation;
 
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Properties;
 
 import soot.Body;
 import soot.SootMethod;
 import soot.Unit;
-import soot.BodyTransformer;
+import soot.jimple.IntConstant;
 
-public class CallLogger extends BodyTransformer
+public class CallLogger extends UnitTransformer
 {
   private final MethodConfig filter;
   private String tag;
   private MethodConfig methodConfig;
+  private String sinkClass;
+  private boolean siteIds;
+  private int sampleRate;
+  private int maxPerSecond;
 
   public CallLogger(Properties config)
   {
@@ -33,32 +38,67 @@ public class CallLogger extends BodyTransformer
       this.tag = "CallLogger";
 
     this.methodConfig = new MethodConfig(config, "CallLogger.");
+    this.sinkClass = LogSinkInjector.getSink(config, "CallLogger");
+    this.siteIds = CallSites.isEnabled(config);
+    this.sampleRate = LogSinkInjector.getSampleRate(config, "CallLogger");
+    this.maxPerSecond = LogSinkInjector.getMaxPerSecond(config, "CallLogger");
   }
 
   @Override
-  protected void internalTransform(Body body, String phaseName, Map<String, String> options)
+  protected Visitor begin(Body body)
   {
     if (this.filter != null && this.filter.get(body.getMethod()) == null)
-      return;
+      return null;
 
-    for (Unit unit: body.getUnits().toArray(new Unit[0]))
+    return new Visitor()
     {
-      SootMethod method = UnitParser.getInvocationMethod(unit);
-      if (method == null)
-        continue;
+      private final Map<Unit,SootMethod> calls = new LinkedHashMap<Unit,SootMethod>();
 
-      String formatString = this.methodConfig.get(method);
-      if (formatString == null)
-        continue;
+      @Override
+      public boolean visit(Unit unit, SootMethod method)
+      {
+        if (method != null && CallLogger.this.methodConfig.get(method) != null)
+          this.calls.put(unit, method);
+        return true;
+      }
 
-      UnitSequence units = new UnitSequence(body);
-      units.log(this.tag, units.extendedFormat(
-        formatString,
-        UnitParser.getAssignmentTarget(unit),
-        UnitParser.getInvocationBase(unit),
-        UnitParser.getInvocationArgs(unit)
-      ));
-      units.insertAfter(unit);
-    }
+      @Override
+      public void finish()
+      {
+        if (this.calls.isEmpty())
+          return;
+
+        for (Map.Entry<Unit,SootMethod> entry: this.calls.entrySet())
+          CallLogger.this.log(body, entry.getKey(), entry.getValue()).insertAfter(entry.getKey());
+        body.validate();
+        ModifiedTag.mark(body.getMethod().getDeclaringClass());
+      }
+    };
+  }
+
+  private UnitSequence log(Body body, Unit unit, SootMethod method)
+  {
+    String formatString = this.methodConfig.get(method);
+
+    // Limiting needs a call-site ID as well, even if these aren't logged
+    boolean limited = (this.sampleRate > 1 || this.maxPerSecond > 0);
+    if (limited)
+      formatString += LogSinkInjector.SKIPPED_SUFFIX;
+    IntConstant site = null;
+    if (this.siteIds || limited)
+      site = CallSites.v().add("CallLogger", body, unit, method.getSignature(), formatString);
+
+    UnitSequence units = new UnitSequence(body);
+    units.log(
+      this.tag,
+      this.siteIds ? site : null,
+      formatString,
+      UnitParser.getAssignmentTarget(unit),
+      UnitParser.getInvocationBase(unit),
+      UnitParser.getInvocationArgs(unit),
+      limited ? units.limit(site, this.sampleRate, this.maxPerSecond) : null,
+      this.sinkClass
+    );
+    return units;
   }
 }
@@ -6,16 +6,15 @@
 
 package info.palant.apkInstrumentation;
 
-import java.util.Map;
 import java.util.Properties;
 
 import soot.Body;
-import soot.BodyTransformer;
 import soot.SootMethod;
+import soot.Unit;
 import soot.jimple.AssignStmt;
 import soot.jimple.NullConstant;
 
-public class CallRemover extends BodyTransformer
+public class CallRemover extends UnitTransformer
 {
   private MethodConfig filter;
   private MethodConfig methodConfig;
@@ -35,24 +34,39 @@ public class CallRemover extends BodyTransformer
   }
 
   @Override
-  protected void internalTransform(Body body, String phaseName, Map<String, String> options)
+  protected Visitor begin(Body body)
   {
     if (this.filter != null && this.filter.get(body.getMethod()) == null)
-      return;
+      return null;
 
-    body.getUnits().removeIf(unit -> {
-      SootMethod method = UnitParser.getInvocationMethod(unit);
-      if (method != null && this.methodConfig.get(method) != null)
+    return new Visitor()
+    {
+      private boolean changed = false;
+
+      @Override
+      public boolean visit(Unit unit, SootMethod method)
       {
-        AssignStmt assignment = UnitParser.getAssignment(unit);
-        if (assignment != null)
-          assignment.setRightOp(NullConstant.v());
-        else
+        if (method == null || CallRemover.this.methodConfig.get(method) == null)
           return true;
+
+        this.changed = true;
+        AssignStmt assignment = UnitParser.getAssignment(unit);
+        if (assignment == null)
+          return false;
+
+        assignment.setRightOp(NullConstant.v());
+        return true;
       }
-      return false;
-    });
 
-    body.validate();
+      @Override
+      public void finish()
+      {
+        if (this.changed)
+        {
+          body.validate();
+          ModifiedTag.mark(body.getMethod().getDeclaringClass());
+        }
+      }
+    };
   }
 }
@@ -0,0 +1,260 @@
+/*
+ * This Source Code is subject to the terms of the Mozilla Public License
+ * version 2.0 (the "License"). You can obtain a copy of the License at
+ * http://mozilla.org/MPL/2.0/.
+ */
+
+package info.palant.apkInstrumentation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.WeakHashMap;
+import java.util.regex.Matcher;
+
+import soot.Body;
+import soot.Scene;
+import soot.Unit;
+import soot.ValueBox;
+import soot.jimple.IntConstant;
+import soot.tagkit.BytecodeOffsetTag;
+
+public class CallSites
+{
+  private static final Map<Scene,CallSites> instances = new WeakHashMap<Scene,CallSites>();
+  private final List<Site> sites = new ArrayList<Site>();
+
+  public static class Site
+  {
+    int id = 0;
+    final String component;
+    final String caller;
+    final String callee;
+    final int offset;
+    final String format;
+    final Body body;
+    final IntConstant placeholder;
+
+    Site(String component, String caller, String callee, int offset, String format, Body body, IntConstant placeholder)
+    {
+      this.component = component;
+      this.caller = caller;
+      this.callee = callee;
+      this.offset = offset;
+      this.format = format;
+      this.body = body;
+      this.placeholder = placeholder;
+    }
+  }
+
+  public static boolean isEnabled(Properties config)
+  {
+    return Boolean.parseBoolean(config.getProperty("callSiteIds", "false"));
+  }
+
+  // Call-site IDs are also used internally for sampling, rate limiting,
+  // profiling and counting calls. These span all classes, so the rewrite cache cannot be used.
+  public static boolean isUsed(Properties config)
+  {
+    return isEnabled(config) || config.getProperty("MethodProfiler.enabled") != null ||
+        config.getProperty("CallCounter.enabled") != null ||
+        LogSinkInjector.isLimited(config, "CallLogger") || LogSinkInjector.isLimited(config, "MethodLogger");
+  }
+
+  public static CallSites v()
+  {
+    synchronized (instances)
+    {
+      CallSites result = instances.get(Scene.v());
+      if (result == null)
+      {
+        result = new CallSites();
+        instances.put(Scene.v(), result);
+      }
+      return result;
+    }
+  }
+
+  // Returns null if no call sites were registered for the current scene
+  public static CallSites remove()
+  {
+    synchronized (instances)
+    {
+      return instances.remove(Scene.v());
+    }
+  }
+
+  // Registers a call site and returns a placeholder for its ID. Actual IDs
+  // are assigned once all bodies have been transformed, so that these don't
+  // depend on the order in which bodies are processed.
+  public IntConstant add(String component, Body body, Unit unit, String callee, String format)
+  {
+    int offset = -1;
+    if (unit != null && unit.hasTag("BytecodeOffsetTag"))
+      offset = ((BytecodeOffsetTag)unit.getTag("BytecodeOffsetTag")).getBytecodeOffset();
+
+    IntConstant placeholder = IntConstant.v(0);
+    synchronized (this.sites)
+    {
+      this.sites.add(new Site(component, body.getMethod().getSignature(), callee, offset, format, body, placeholder));
+    }
+    return placeholder;
+  }
+
+  public int size()
+  {
+    return this.sites.size();
+  }
+
+  // Names of the sites registered by a component indexed by ID, empty for
+  // other sites. The name is the calling method, followed by the called method
+  // if any.
+  public String[] getNames(String component)
+  {
+    String[] result = new String[this.sites.size() + 1];
+    result[0] = "";
+    for (Site site: this.sites)
+    {
+      if (!site.component.equals(component))
+        result[site.id] = "";
+      else if (site.callee != null)
+        result[site.id] = site.caller + " -> " + site.callee;
+      else
+        result[site.id] = site.caller;
+    }
+    return result;
+  }
+
+  public void assignIds()
+  {
+    // Sites of a single body are always registered in the same order, sorting
+    // is stable.
+    this.sites.sort(Comparator.comparing(site -> site.caller));
+
+    Map<IntConstant,Site> placeholders = new IdentityHashMap<IntConstant,Site>();
+    List<Body> bodies = new ArrayList<Body>();
+    for (Site site: this.sites)
+    {
+      site.id = placeholders.size() + 1;
+      placeholders.put(site.placeholder, site);
+      if (bodies.isEmpty() || bodies.get(bodies.size() - 1) != site.body)
+        bodies.add(site.body);
+    }
+
+    for (Body body: bodies)
+    {
+      for (ValueBox box: body.getUseBoxes())
+      {
+        Site site = placeholders.get(box.getValue());
+        if (site != null)
+          box.setValue(IntConstant.v(site.id));
+      }
+    }
+  }
+
+  private static String escape(String value)
+  {
+    return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+  }
+
+  private static String unescape(String value)
+  {
+    StringBuilder result = new StringBuilder();
+    for (int i = 0; i < value.length(); i++)
+    {
+      char c = value.charAt(i);
+      if (c == '\\' && i + 1 < value.length())
+      {
+        c = value.charAt(++i);
+        if (c == 't')
+          c = '\t';
+        else if (c == 'n')
+          c = '\n';
+      }
+      result.append(c);
+    }
+    return result.toString();
+  }
+
+  // Mapping file has one line per call site: ID, component, caller, callee,
+  // bytecode offset and format string, separated by tabs.
+  public void write(File file) throws IOException
+  {
+    PrintStream output = new PrintStream(file, "UTF-8");
+    for (Site site: this.sites)
+    {
+      output.println(site.id + "\t" + site.component + "\t" + escape(site.caller) + "\t" +
+          escape(site.callee != null ? site.callee : "-") + "\t" + site.offset + "\t" + escape(site.format));
+    }
+    output.close();
+  }
+
+  public static Map<Integer,Site> read(File file) throws IOException
+  {
+    Map<Integer,Site> result = new HashMap<Integer,Site>();
+    for (String line: Files.readAllLines(file.toPath(), StandardCharsets.UTF_8))
+    {
+      String[] fields = line.split("\t", -1);
+      if (fields.length != 6)
+        throw new IOException("Unexpected line in call site mapping " + file + ": " + line);
+
+      Site site = new Site(fields[1], unescape(fields[2]), unescape(fields[3]), Integer.parseInt(fields[4]), unescape(fields[5]), null, null);
+      site.id = Integer.parseInt(fields[0]);
+      result.put(site.id, site);
+    }
+    return result;
+  }
+
+  private static void appendLiteral(StringBuilder result, String literal)
+  {
+    for (int i = 0; i < literal.length(); i++)
+    {
+      char c = literal.charAt(i);
+      if (c == '%' && i + 1 < literal.length() && literal.charAt(i + 1) == 'n')
+      {
+        result.append('\n');
+        i++;
+      }
+      else if (c == '%' && i + 1 < literal.length() && literal.charAt(i + 1) == '%')
+        result.append(literal.charAt(++i));
+      else
+        result.append(c);
+    }
+  }
+
+  // Restores the full message from tab-separated values logged for a call
+  // site, see UnitSequence.formatValues().
+  public static String restore(Site site, String values)
+  {
+    String[] parts = (values.isEmpty() ? new String[0] : values.split("\t", -1));
+    Matcher matcher = UnitSequence.PLACEHOLDER.matcher(site.format);
+    StringBuilder result = new StringBuilder();
+    int index = 0;
+    int prevEnd = 0;
+    while (matcher.find())
+    {
+      appendLiteral(result, site.format.substring(prevEnd, matcher.start()));
+      prevEnd = matcher.end();
+
+      if (matcher.group(1).equals("method"))
+        result.append(site.caller);
+      else if (index < parts.length)
+        result.append(parts[index++]);
+    }
+    appendLiteral(result, site.format.substring(prevEnd));
+
+    // A value containing tabs is split up, add whatever remains
+    while (index < parts.length)
+      result.append('\t').append(parts[index++]);
+    return result.toString();
+  }
+}
@@ -13,19 +13,28 @@ import java.util.regex.Pattern;
 
 import soot.Body;
 import soot.Local;
+import soot.Scene;
 import soot.SootModuleResolver;
 import soot.SootClass;
 import soot.SootField;
 import soot.SootMethod;
 import soot.Unit;
+import soot.Value;
 import soot.jimple.AssignStmt;
 import soot.jimple.CastExpr;
 import soot.jimple.InvokeStmt;
 import soot.jimple.SpecialInvokeExpr;
+import soot.jimple.StaticFieldRef;
 import soot.jimple.parser.JimpleAST;
 
 public abstract class ClassInjector
 {
+  // Injected classes shouldn't be instrumented themselves
+  public static boolean isInjected(SootClass cls)
+  {
+    return cls.getName().startsWith("info.palant.apkInstrumentation.");
+  }
+
   public static void injectClass(String spec)
   {
     SootClass cls = SootModuleResolver.v().resolveClass(spec, SootClass.BODIES);
@@ -81,6 +90,28 @@ public abstract class ClassInjector
     }
   }
 
+  // Replaces the value assigned to a static field in the static initializer,
+  // this allows configuring injected classes.
+  public static void setStaticField(String className, String fieldName, Value value)
+  {
+    SootClass cls = Scene.v().getSootClass(className);
+    SootField field = cls.getFieldByName(fieldName);
+    Body body = cls.getMethodByName("<clinit>").retrieveActiveBody();
+    for (Unit unit: body.getUnits())
+    {
+      if (!(unit instanceof AssignStmt))
+        continue;
+
+      AssignStmt assignment = (AssignStmt)unit;
+      if (assignment.getLeftOp() instanceof StaticFieldRef && ((StaticFieldRef)assignment.getLeftOp()).getField() == field)
+      {
+        assignment.setRightOp(value);
+        return;
+      }
+    }
+    throw new RuntimeException("Static initializer of " + className + " doesn't assign field " + fieldName);
+  }
+
   public static void injectJimple(String path)
   {
     try
@@ -114,6 +145,7 @@ public abstract class ClassInjector
           ast.getSkeleton(cls);
           for (SootMethod method: cls.getMethods())
             method.setActiveBody(ast.getBody(method));
+          ModifiedTag.mark(cls);
         }
         else
           throw e;
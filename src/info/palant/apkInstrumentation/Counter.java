@@ -0,0 +1,132 @@
+/*
+ * This Source Code is subject to the terms of the Mozilla Public License
+ * version 2.0 (the "License"). You can obtain a copy of the License at
+ * http://mozilla.org/MPL/2.0/.
+ */
+
+package info.palant.apkInstrumentation;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class Counter implements Runnable
+{
+  // These values are replaced in the static initializer during injection.
+  // Call site names are separated by newlines, the line number is call-site
+  // ID.
+  static String siteNames = "";
+  static String tag = "CallCounter";
+  static int interval = 10;
+  static boolean logToFile = false;
+
+  // Counters are 64 bytes apart, so that call sites counted on different
+  // threads don't invalidate each other's cache lines.
+  private static final int SPACING = 8;
+
+  private static final String[] names = siteNames.split("\n", -1);
+  private static final AtomicLongArray counts = new AtomicLongArray(names.length * SPACING);
+
+  // Call sites with identical names are reported together
+  private static final int[] groups = new int[names.length];
+  private static final String[] groupNames;
+  private static long lastDump = System.nanoTime();
+
+  static
+  {
+    Map<String,Integer> known = new HashMap<String,Integer>();
+    for (int site = 0; site < names.length; site++)
+    {
+      Integer group = known.get(names[site]);
+      if (group == null)
+      {
+        group = known.size();
+        known.put(names[site], group);
+      }
+      groups[site] = group;
+    }
+
+    groupNames = new String[known.size()];
+    for (Map.Entry<String,Integer> entry: known.entrySet())
+      groupNames[entry.getValue()] = entry.getKey();
+
+    if (interval > 0)
+    {
+      Thread thread = new Thread(new Counter(), "CallCounter");
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  public static void increment(int site)
+  {
+    counts.incrementAndGet(site * SPACING);
+  }
+
+  private static void log(String message)
+  {
+    if (logToFile)
+      LogFile.log(tag, message);
+    else
+      LogSink.log(tag, message);
+  }
+
+  // Logs calls counted since the previous dump, most frequent calls first
+  public static synchronized void dump()
+  {
+    long[] sums = new long[groupNames.length];
+    for (int site = 0; site < names.length; site++)
+      sums[groups[site]] += counts.getAndSet(site * SPACING, 0);
+
+    long now = System.nanoTime();
+    long elapsed = now - lastDump;
+    lastDump = now;
+
+    int[] found = new int[sums.length];
+    int count = 0;
+    for (int group = 0; group < sums.length; group++)
+      if (sums[group] != 0)
+        found[count++] = group;
+    if (count == 0)
+      return;
+
+    sortByValue(found, count, sums);
+
+    log("Calls counted over " + (elapsed / 1000000) + " ms:");
+    for (int i = 0; i < count; i++)
+      log(groupNames[found[i]] + ": " + sums[found[i]] + " calls");
+  }
+
+  // Orders indexes by their values, largest first. Values are packed together
+  // with indexes so that no comparator class is needed for sorting.
+  private static void sortByValue(int[] indexes, int count, long[] values)
+  {
+    int bits = 32 - Integer.numberOfLeadingZeros(values.length);
+    long mask = (1L << bits) - 1;
+    long maxValue = Long.MAX_VALUE >> bits;
+    long[] keys = new long[count];
+    for (int i = 0; i < count; i++)
+      keys[i] = (Math.min(values[indexes[i]], maxValue) << bits) | (mask - indexes[i]);
+    Arrays.sort(keys);
+    for (int i = 0; i < count; i++)
+      indexes[i] = (int)(mask - (keys[count - 1 - i] & mask));
+  }
+
+  @Override
+  public void run()
+  {
+    while (true)
+    {
+      try
+      {
+        Thread.sleep(interval * 1000L);
+      }
+      catch (InterruptedException e)
+      {
+        return;
+      }
+      dump();
+    }
+  }
+}
@@ -0,0 +1,57 @@
+/*
+ * This Source Code is subject to the terms of the Mozilla Public License
+ * version 2.0 (the "License"). You can obtain a copy of the License at
+ * http://mozilla.org/MPL/2.0/.
+ */
+
+package info.palant.apkInstrumentation;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.writer.io.FileDataStore;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+
+// Rewritten dex file, kept in memory unless it is expected to be large
+public class DexOutput
+{
+  private final byte[] data;
+  private final File file;
+
+  private DexOutput(byte[] data, File file)
+  {
+    this.data = data;
+    this.file = file;
+  }
+
+  // Writes the dex file to memory if file is null, otherwise to the file
+  public static DexOutput write(DexPool pool, File file, int sizeHint) throws IOException
+  {
+    if (file == null)
+    {
+      MemoryDataStore store = new MemoryDataStore(sizeHint);
+      pool.writeTo(store);
+      return new DexOutput(store.getData(), null);
+    }
+
+    FileDataStore store = new FileDataStore(file);
+    pool.writeTo(store);
+    store.close();
+    return new DexOutput(null, file);
+  }
+
+  public byte[] getData() throws IOException
+  {
+    if (this.data != null)
+      return this.data;
+    return Files.readAllBytes(this.file.toPath());
+  }
+
+  public DexBackedDexFile load() throws IOException
+  {
+    return new DexBackedDexFile(null, this.getData());
+  }
+}
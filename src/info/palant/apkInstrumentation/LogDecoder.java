@@ -0,0 +1,139 @@
+/*
+ * This Source Code is subject to the terms of the Mozilla Public License
+ * version 2.0 (the "License"). You can obtain a copy of the License at
+ * http://mozilla.org/MPL/2.0/.
+ */
+
+package info.palant.apkInstrumentation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+
+public class LogDecoder
+{
+  private static String readString(ByteBuffer buffer, int length)
+  {
+    byte[] data = new byte[length];
+    buffer.get(data);
+    return new String(data, StandardCharsets.UTF_8);
+  }
+
+  // Same escaping as used by logging streams when writing to the log
+  private static void escape(ByteBuffer data, StringBuilder output)
+  {
+    while (data.hasRemaining())
+    {
+      int b = data.get() & 0xFF;
+      if (b == 0x5C)
+        output.append("\\\\");
+      else if (b == 0x22)
+        output.append("\\\"");
+      else if (b >= 0x20 && b < 0x7F)
+        output.append((char)b);
+      else
+        output.append(String.format("\\x%02x", b));
+    }
+  }
+
+  private static boolean isRecord(ByteBuffer buffer, int position)
+  {
+    if (position > buffer.limit() - 4)
+      return false;
+
+    int size = buffer.getInt(position);
+    return size > 0 && size <= buffer.limit() - position - 8 && buffer.getInt(position + 4 + size) == LogFile.COMMITTED;
+  }
+
+  // Looks for the next record with a commit marker at the expected position,
+  // unwritten space is zero-filled so that it won't be mistaken for a record.
+  private static int findNextRecord(ByteBuffer buffer, int position)
+  {
+    for (int i = position + 1; i < buffer.limit(); i++)
+      if (isRecord(buffer, i))
+        return i;
+    return buffer.limit();
+  }
+
+  public static void decode(File input, PrintStream output, Map<Integer,CallSites.Site> sites) throws IOException
+  {
+    ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(input.toPath()));
+    byte[] magic = new byte[LogFile.MAGIC.length];
+    if (buffer.remaining() >= magic.length)
+      buffer.get(magic);
+    if (!Arrays.equals(magic, LogFile.MAGIC))
+      throw new IOException(input + " isn't a log file written by the instrumented app");
+
+    // Only space reserved by the app contains records
+    long end = buffer.remaining() >= 8 ? buffer.getLong() : 0;
+    if (end < LogFile.HEADER_SIZE || end > buffer.capacity())
+    {
+      System.err.println("Warning: log file " + input + " is truncated or damaged.");
+      end = buffer.capacity();
+    }
+    buffer.limit((int)end);
+
+    SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+    while (buffer.remaining() >= 4)
+    {
+      // Reserved space that was never written, e.g. because the app crashed
+      // right after reserving it. Its size is unknown, continue with the next
+      // committed record.
+      int size = buffer.getInt();
+      if (size <= 0 || size > buffer.remaining() - 4)
+      {
+        System.err.println("Warning: skipping unwritten data in log file " + input + ".");
+        buffer.position(findNextRecord(buffer, buffer.position() - 4));
+        continue;
+      }
+
+      ByteBuffer record = buffer.slice();
+      record.limit(size);
+      buffer.position(buffer.position() + size);
+
+      // Records without commit marker were still being written when the app
+      // crashed or the file was copied, their size is known so later records
+      // are still found.
+      if (buffer.getInt() != LogFile.COMMITTED)
+      {
+        System.err.println("Warning: skipping incomplete record in log file " + input + ".");
+        continue;
+      }
+
+      byte type = record.get();
+      long time = record.getLong();
+      long thread = record.getLong();
+      int site = record.getInt();
+      String tag = readString(record, record.getShort() & 0xFFFF);
+      String text = readString(record, record.getInt());
+
+      StringBuilder line = new StringBuilder();
+      line.append(dateFormat.format(new Date(time)));
+      line.append(" [thread ").append(thread).append("] ");
+
+      // With call-site IDs only placeholder values are logged, the message
+      // has to be restored using the call-site mapping.
+      if (site != 0 && sites != null && sites.containsKey(site))
+        text = CallSites.restore(sites.get(site), text);
+      else if (site != 0)
+        line.append("[site ").append(site).append("] ");
+      line.append(tag).append(": ").append(text);
+      if (type == LogFile.TYPE_RECEIVED || type == LogFile.TYPE_SENT)
+      {
+        line.append(type == LogFile.TYPE_RECEIVED ? ": received data \"" : ": sent data \"");
+        escape(record, line);
+        line.append('"');
+      }
+      else if (type == LogFile.TYPE_CLOSED)
+        line.append(": ").append(readString(record, record.remaining()));
+      output.println(line);
+    }
+  }
+}
@@ -0,0 +1,241 @@
+/*
+ * This Source Code is subject to the terms of the Mozilla Public License
+ * version 2.0 (the "License"). You can obtain a copy of the License at
+ * http://mozilla.org/MPL/2.0/.
+ */
+
+package info.palant.apkInstrumentation;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class LogFile
+{
+  // These values are replaced in the static initializer during injection
+  static String fileName = "instrumentation.log";
+  static int maxSize = 0x4000000;
+
+  // File format: magic and end of the reserved space followed by records.
+  // Each record starts with its size and ends with a commit marker once it is
+  // complete. Records with zero size were reserved but never written.
+  static final byte[] MAGIC = {'A', 'P', 'K', 'I', 'L', 'O', 'G', '3'};
+  static final int END_OFFSET = MAGIC.length;
+  static final int HEADER_SIZE = END_OFFSET + 8;
+  static final int COMMITTED = 0x434D4954;
+  static final byte TYPE_MESSAGE = 0;
+  static final byte TYPE_RECEIVED = 1;
+  static final byte TYPE_SENT = 2;
+  static final byte TYPE_CLOSED = 3;
+
+  // Android user ID is the app's UID divided by this
+  private static final int PER_USER_RANGE = 100000;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final byte[] EMPTY = new byte[0];
+
+  private static final Object lock = new Object();
+  private static volatile LogFile instance = null;
+  private static volatile boolean failed = false;
+
+  private final MappedByteBuffer buffer;
+  private final AtomicLong position;
+  private long end;
+
+  private LogFile(File file) throws IOException
+  {
+    // Mapping stays valid after the file is closed
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    boolean existing = false;
+    try
+    {
+      // Keep the existing log if the app has been started before
+      byte[] magic = new byte[MAGIC.length];
+      if (raf.length() >= MAGIC.length)
+      {
+        raf.readFully(magic);
+        existing = Arrays.equals(magic, MAGIC);
+      }
+      if (!existing)
+        raf.setLength(0);
+      this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, maxSize);
+    }
+    finally
+    {
+      raf.close();
+    }
+
+    // Continue after all space reserved previously, records that were never
+    // completed (e.g. because the app crashed while writing them) must not be
+    // overwritten by new ones.
+    long position = HEADER_SIZE;
+    if (existing)
+    {
+      long end = this.buffer.getLong(END_OFFSET);
+      if (end >= HEADER_SIZE && end <= maxSize)
+        position = end;
+    }
+    else
+      this.buffer.put(MAGIC);
+    this.end = position;
+    this.buffer.putLong(END_OFFSET, position);
+    this.position = new AtomicLong(position);
+  }
+
+  private static File getFile() throws IOException
+  {
+    if (fileName.startsWith("/"))
+      return new File(fileName);
+
+    // Process name is the package name, optionally followed by :process
+    byte[] data = new byte[256];
+    FileInputStream stream = new FileInputStream("/proc/self/cmdline");
+    int length;
+    try
+    {
+      length = Math.max(stream.read(data), 0);
+    }
+    finally
+    {
+      stream.close();
+    }
+
+    String process = new String(data, 0, length, UTF8);
+    if (process.indexOf('\0') >= 0)
+      process = process.substring(0, process.indexOf('\0'));
+
+    String name = fileName;
+    int index = process.indexOf(':');
+    if (index >= 0)
+    {
+      name += "-" + process.substring(index + 1);
+      process = process.substring(0, index);
+    }
+
+    // Secondary users and work profiles have their data outside of /data/data
+    int userId = 0;
+    try
+    {
+      int uid = (Integer)Class.forName("android.os.Process").getMethod("myUid").invoke(null);
+      userId = uid / PER_USER_RANGE;
+    }
+    catch (Exception e)
+    {
+      e.printStackTrace();
+    }
+    if (userId != 0)
+      return new File("/data/user/" + userId + "/" + process, name);
+    return new File("/data/data/" + process, name);
+  }
+
+  private static LogFile getInstance()
+  {
+    LogFile result = instance;
+    if (result != null || failed)
+      return result;
+
+    synchronized (lock)
+    {
+      if (instance == null && !failed)
+      {
+        try
+        {
+          instance = new LogFile(getFile());
+        }
+        catch (IOException e)
+        {
+          e.printStackTrace();
+          failed = true;
+        }
+      }
+      return instance;
+    }
+  }
+
+  private void append(byte type, String tag, int site, String text, byte[] data, int off, int len)
+  {
+    byte[] tagBytes = String.valueOf(tag).getBytes(UTF8);
+    byte[] textBytes = String.valueOf(text).getBytes(UTF8);
+    int size = 1 + 8 + 8 + 4 + 2 + tagBytes.length + 4 + textBytes.length + len;
+
+    // Records that don't fit are dropped. End of the reserved space is stored
+    // before anything else, so that a restart won't reuse this space even if
+    // the record is never completed.
+    long start = this.position.getAndAdd(4 + size + 4);
+    if (start + 4 + size + 4 > this.buffer.capacity())
+      return;
+    reserved(start + 4 + size + 4);
+    this.buffer.putInt((int)start, size);
+
+    ByteBuffer record = this.buffer.duplicate();
+    record.position((int)start + 4);
+    record.put(type);
+    record.putLong(System.currentTimeMillis());
+    record.putLong(Thread.currentThread().getId());
+    record.putInt(site);
+    record.putShort((short)tagBytes.length);
+    record.put(tagBytes);
+    record.putInt(textBytes.length);
+    record.put(textBytes);
+    record.put(data, off, len);
+
+    // Commit marker is written last, so that incomplete records are recognized
+    record.putInt(COMMITTED);
+  }
+
+  // Stored end has to grow monotonically, regardless of the order in which
+  // threads get here
+  private synchronized void reserved(long end)
+  {
+    if (end > this.end)
+    {
+      this.end = end;
+      this.buffer.putLong(END_OFFSET, end);
+    }
+  }
+
+  public static void log(String tag, String message)
+  {
+    log(tag, 0, message);
+  }
+
+  // Call-site ID is zero if not known
+  public static void log(String tag, int site, String message)
+  {
+    LogFile file = getInstance();
+    if (file != null)
+      file.append(TYPE_MESSAGE, tag, site, message, EMPTY, 0, 0);
+  }
+
+  public static void received(String tag, int site, String prefix, byte[] data, int off, int len)
+  {
+    LogFile file = getInstance();
+    if (file != null)
+      file.append(TYPE_RECEIVED, tag, site, prefix, data, off, len);
+  }
+
+  public static void sent(String tag, int site, String prefix, byte[] data, int off, int len)
+  {
+    LogFile file = getInstance();
+    if (file != null)
+      file.append(TYPE_SENT, tag, site, prefix, data, off, len);
+  }
+
+  // Stream summary is stored as data, so that the prefix can be restored
+  public static void closed(String tag, int site, String prefix, String summary)
+  {
+    LogFile file = getInstance();
+    if (file != null)
+    {
+      byte[] data = summary.getBytes(UTF8);
+      file.append(TYPE_CLOSED, tag, site, prefix, data, 0, data.length);
+    }
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ * This Source Code is subject to the terms of the Mozilla Public License
+ * version 2.0 (the "License"). You can obtain a copy of the License at
+ * http://mozilla.org/MPL/2.0/.
+ */
+
+package info.palant.apkInstrumentation;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LogLimiter
+{
+  // Replaced in the static initializer once call-site IDs are assigned
+  static int siteCount = 0;
+
+  private static final long SECOND = 1000000000L;
+  private static final long start = System.nanoTime();
+
+  private static final AtomicLongArray calls = new AtomicLongArray(siteCount);
+  private static final AtomicLongArray skipped = new AtomicLongArray(siteCount);
+
+  // Token bucket state: the time at which the bucket would be full again,
+  // relative to start. Keeping it in a single value allows updating it with
+  // compare-and-set.
+  private static final AtomicLongArray fullTimes = new AtomicLongArray(siteCount);
+
+  private static boolean takeToken(int site, int maxPerSecond)
+  {
+    long interval = SECOND / maxPerSecond;
+    while (true)
+    {
+      long now = System.nanoTime() - start;
+      long fullTime = fullTimes.get(site);
+      long newFullTime = Math.max(fullTime, now) + interval;
+      if (newFullTime - now > SECOND)
+        return false;
+      if (fullTimes.compareAndSet(site, fullTime, newFullTime))
+        return true;
+    }
+  }
+
+  // Returns -1 if the call shouldn't be logged, otherwise the number of calls
+  // skipped since the last call logged at this site.
+  public static int check(int site, int sampleRate, int maxPerSecond)
+  {
+    if ((sampleRate > 1 && calls.getAndIncrement(site) % sampleRate != 0) ||
+        (maxPerSecond > 0 && !takeToken(site, maxPerSecond)))
+    {
+      skipped.incrementAndGet(site);
+      return -1;
+    }
+
+    return (int)Math.min(skipped.getAndSet(site, 0), Integer.MAX_VALUE);
+  }
+}
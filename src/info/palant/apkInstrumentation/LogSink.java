@@ -0,0 +1,170 @@
+/*
+ * This Source Code is subject to the terms of the Mozilla Public License
+ * version 2.0 (the "License"). You can obtain a copy of the License at
+ * http://mozilla.org/MPL/2.0/.
+ */
+
+package info.palant.apkInstrumentation;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+public class LogSink implements Runnable
+{
+  // These values are replaced in the static initializer during injection.
+  // Queue capacity has to be a power of two, zero means logging directly.
+  static int capacity = 0;
+  static boolean blockWhenFull = false;
+
+  private static final LogSink instance = (capacity > 0 ? new LogSink(capacity) : null);
+
+  // Bounded multi-producer queue: each slot has a sequence number telling
+  // whether it is free for the producer at position pos (sequence == pos) or
+  // holds a record for the consumer (sequence == pos + 1).
+  private final int mask;
+  private final String[] tags;
+  private final String[] messages;
+  private final AtomicLongArray sequences;
+  private final AtomicLong tail = new AtomicLong();
+  private long head = 0;
+
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicBoolean sleeping = new AtomicBoolean();
+  private final Thread thread;
+
+  private LogSink(int capacity)
+  {
+    this.mask = capacity - 1;
+    this.tags = new String[capacity];
+    this.messages = new String[capacity];
+    this.sequences = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++)
+      this.sequences.set(i, i);
+
+    this.thread = new Thread(this, "LogSink");
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  public static void log(String tag, String message)
+  {
+    if (instance == null)
+      write(tag, message);
+    else
+      instance.enqueue(tag, message);
+  }
+
+  // Calling indirectly to avoid dependency on android.jar during build. The
+  // method is only looked up once, and LogSinkInjector replaces this method by
+  // a direct call to android.util.Log.i() when injecting the class.
+  private static Method logMethod = null;
+
+  private static void write(String tag, String message)
+  {
+    try
+    {
+      if (logMethod == null)
+        logMethod = Class.forName("android.util.Log").getDeclaredMethod("i", String.class, String.class);
+      logMethod.invoke(null, tag, message);
+    }
+    catch (Exception e)
+    {
+      e.printStackTrace();
+    }
+  }
+
+  private boolean offer(String tag, String message)
+  {
+    long pos = this.tail.get();
+    while (true)
+    {
+      int index = (int)(pos & this.mask);
+      long diff = this.sequences.get(index) - pos;
+      if (diff == 0)
+      {
+        if (this.tail.compareAndSet(pos, pos + 1))
+        {
+          this.tags[index] = tag;
+          this.messages[index] = message;
+          this.sequences.set(index, pos + 1);
+          return true;
+        }
+        pos = this.tail.get();
+      }
+      else if (diff < 0)
+        return false;
+      else
+        pos = this.tail.get();
+    }
+  }
+
+  private void enqueue(String tag, String message)
+  {
+    while (!this.offer(tag, message))
+    {
+      if (!blockWhenFull || Thread.currentThread() == this.thread)
+      {
+        this.dropped.incrementAndGet();
+        return;
+      }
+
+      this.wake();
+      LockSupport.parkNanos(1000000L);
+    }
+
+    this.wake();
+  }
+
+  private void wake()
+  {
+    // Only unpark if the drainer is actually waiting, this is rare under load
+    if (this.sleeping.get() && this.sleeping.compareAndSet(true, false))
+      LockSupport.unpark(this.thread);
+  }
+
+  private boolean drain()
+  {
+    boolean found = false;
+    while (true)
+    {
+      int index = (int)(this.head & this.mask);
+      if (this.sequences.get(index) != this.head + 1)
+        break;
+
+      String tag = this.tags[index];
+      String message = this.messages[index];
+      this.tags[index] = null;
+      this.messages[index] = null;
+      this.sequences.set(index, this.head + this.mask + 1);
+      this.head++;
+
+      write(tag, message);
+      found = true;
+    }
+
+    long count = this.dropped.getAndSet(0);
+    if (count > 0)
+      write("LogSink", count + " messages dropped, log queue full");
+    return found;
+  }
+
+  @Override
+  public void run()
+  {
+    while (true)
+    {
+      if (this.drain())
+        continue;
+
+      // Producers check the flag after publishing a record, so the queue has
+      // to be checked again after setting it.
+      this.sleeping.set(true);
+      if (!this.drain())
+        LockSupport.parkNanos(100000000L);
+      this.sleeping.set(false);
+    }
+  }
+}
@@ -0,0 +1,181 @@
+/*
+ * This Source Code is subject to the terms of the Mozilla Public License
+ * version 2.0 (the "License"). You can obtain a copy of the License at
+ * http://mozilla.org/MPL/2.0/.
+ */
+
+package info.palant.apkInstrumentation;
+
+import java.util.Map;
+import java.util.Properties;
+
+import soot.RefType;
+import soot.Scene;
+import soot.SceneTransformer;
+import soot.SootClass;
+import soot.SootMethod;
+import soot.jimple.IntConstant;
+import soot.jimple.Jimple;
+import soot.jimple.JimpleBody;
+import soot.jimple.StringConstant;
+
+public class LogSinkInjector extends SceneTransformer
+{
+  final static String SINK_CLASS = "info.palant.apkInstrumentation.LogSink";
+  final static String FILE_CLASS = "info.palant.apkInstrumentation.LogFile";
+  final static String LIMITER_CLASS = "info.palant.apkInstrumentation.LogLimiter";
+
+  // Appended to format strings if calls are sampled or rate limited
+  final static String SKIPPED_SUFFIX = " ({skipped:%d} calls skipped)";
+  final static String[] COMPONENTS = {"MethodLogger", "CallLogger", "StreamLogger", "MethodProfiler", "CallCounter"};
+
+  private final int capacity;
+  private final boolean blockWhenFull;
+  private final String fileName;
+  private final int fileSize;
+  private boolean injectSink = false;
+  private boolean injectFile = false;
+  private boolean injectLimiter = false;
+
+  public LogSinkInjector(Properties config)
+  {
+    String size = config.getProperty("logQueueSize");
+    if (size != null)
+    {
+      int capacity = Integer.parseInt(size);
+      if (capacity < 1)
+        throw new RuntimeException("logQueueSize option has to be a positive number");
+
+      // Queue capacity has to be a power of two, round up
+      if (Integer.bitCount(capacity) != 1)
+        capacity = Integer.highestOneBit(capacity) << 1;
+      this.capacity = capacity;
+    }
+    else
+      this.capacity = 0;
+
+    String policy = config.getProperty("logQueueFull", "drop");
+    if (policy.equals("block"))
+      this.blockWhenFull = true;
+    else if (policy.equals("drop"))
+      this.blockWhenFull = false;
+    else
+      throw new RuntimeException("Unsupported value for logQueueFull option: " + policy);
+
+    this.fileName = config.getProperty("logFile", "instrumentation.log");
+    this.fileSize = Integer.parseInt(config.getProperty("logFileSize", "67108864"));
+    if (this.fileSize < 4096)
+      throw new RuntimeException("logFileSize option has to be at least 4096");
+
+    for (String component: COMPONENTS)
+    {
+      if (config.getProperty(component + ".enabled") == null)
+        continue;
+
+      // Logging stream classes, profiler and counter reference both sinks
+      String sink = getSink(config, component);
+      boolean both = component.equals("StreamLogger") || component.equals("MethodProfiler") || component.equals("CallCounter");
+      if (both || SINK_CLASS.equals(sink))
+        this.injectSink = true;
+      if (both || FILE_CLASS.equals(sink))
+        this.injectFile = true;
+      if (isLimited(config, component))
+        this.injectLimiter = true;
+    }
+  }
+
+  // Class that injected code should log through, null for android.util.Log
+  public static String getSink(Properties config, String component)
+  {
+    String sink = config.getProperty(component + ".sink", "log");
+    if (sink.equals("file"))
+      return FILE_CLASS;
+    else if (sink.equals("log"))
+      return config.getProperty("logQueueSize") != null ? SINK_CLASS : null;
+    else
+      throw new RuntimeException("Unsupported value for " + component + ".sink option: " + sink);
+  }
+
+  // Sample rate is given as 1/N, only every Nth call is logged then
+  public static int getSampleRate(Properties config, String component)
+  {
+    String sample = config.getProperty(component + ".sample");
+    if (sample == null)
+      return 1;
+
+    int rate = -1;
+    if (sample.startsWith("1/"))
+      rate = Integer.parseInt(sample.substring(2).trim());
+    if (rate < 1)
+      throw new RuntimeException("Unsupported value for " + component + ".sample option, 1/N expected: " + sample);
+    return rate;
+  }
+
+  public static int getMaxPerSecond(Properties config, String component)
+  {
+    int result = Integer.parseInt(config.getProperty(component + ".maxPerSecond", "0"));
+    if (result < 0)
+      throw new RuntimeException(component + ".maxPerSecond option cannot be negative");
+    return result;
+  }
+
+  public static boolean isLimited(Properties config, String component)
+  {
+    return (component.equals("CallLogger") || component.equals("MethodLogger")) && config.getProperty(component + ".enabled") != null &&
+        (getSampleRate(config, component) > 1 || getMaxPerSecond(config, component) > 0);
+  }
+
+  public boolean isNeeded()
+  {
+    return this.injectSink || this.injectFile || this.injectLimiter;
+  }
+
+  // LogLimiter needs to know the number of call sites, this is only known
+  // after all bodies have been transformed.
+  public static void setSiteCount(int count)
+  {
+    SootClass cls = Scene.v().getSootClassUnsafe(LIMITER_CLASS, false);
+    if (cls != null && cls.isApplicationClass())
+      ClassInjector.setStaticField(LIMITER_CLASS, "siteCount", IntConstant.v(count));
+  }
+
+  @Override
+  protected void internalTransform(String phaseName, Map<String, String> options)
+  {
+    if (this.injectSink)
+    {
+      ClassInjector.injectClass(SINK_CLASS);
+      ClassInjector.setStaticField(SINK_CLASS, "capacity", IntConstant.v(this.capacity));
+      ClassInjector.setStaticField(SINK_CLASS, "blockWhenFull", IntConstant.v(this.blockWhenFull ? 1 : 0));
+      bindLogMethod();
+    }
+
+    if (this.injectFile)
+    {
+      ClassInjector.injectClass(FILE_CLASS);
+      ClassInjector.setStaticField(FILE_CLASS, "fileName", StringConstant.v(this.fileName));
+      ClassInjector.setStaticField(FILE_CLASS, "maxSize", IntConstant.v(this.fileSize));
+    }
+
+    if (this.injectLimiter)
+      ClassInjector.injectClass(LIMITER_CLASS);
+  }
+
+  // Replace reflection in LogSink.write() by a direct call to
+  // android.util.Log.i(), it is always available in the scene.
+  private static void bindLogMethod()
+  {
+    SootMethod method = Scene.v().getSootClass(SINK_CLASS).getMethodByName("write");
+    JimpleBody body = Jimple.v().newBody(method);
+    body.insertIdentityStmts();
+    body.getUnits().add(Jimple.v().newInvokeStmt(
+      Jimple.v().newStaticInvokeExpr(
+        SceneAccess.getMethod(RefType.v("android.util.Log"), "i", method.getParameterTypes()).makeRef(),
+        body.getParameterLocals()
+      )
+    ));
+    body.getUnits().add(Jimple.v().newReturnVoidStmt());
+    method.setActiveBody(body);
+    body.validate();
+  }
+}
@@ -9,48 +9,209 @@ package info.palant.apkInstrumentation;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.reflect.Method;
 
 public class LoggingInputStream extends FilterInputStream
 {
+  // Escaped representation of each byte value, computed up front so that no
+  // strings need to be created while logging.
+  private static final char[][] ESCAPES = new char[256][];
+  static
+  {
+    char[] hex = "0123456789abcdef".toCharArray();
+    for (int i = 0; i < ESCAPES.length; i++)
+    {
+      if (i == 0x5C)
+        ESCAPES[i] = new char[] {'\\', '\\'};
+      else if (i == 0x22)
+        ESCAPES[i] = new char[] {'\\', '"'};
+      else if (i >= 0x20 && i < 0x7F)
+        ESCAPES[i] = new char[] {(char)i};
+      else
+        ESCAPES[i] = new char[] {'\\', 'x', hex[i >> 4], hex[i & 0xF]};
+    }
+  }
+
+  private static final int MAX_BUFFER_SIZE = 0x10000;
+
+  // Replaced in the static initializer during injection if raw data should be
+  // written to LogFile.
+  static boolean logToFile = false;
+
   private final String tag;
   private final String prefix;
+  private final int site;
   private boolean reentrance = false;
+  private char[] buffer = null;
+  private byte[] pending = null;
+  private int pendingLength = 0;
+  private long pendingSince = 0;
+  private volatile Thread pendingOwner = null;
+  private final StreamCapture capture = StreamCapture.create();
+  private boolean closed = false;
 
   public LoggingInputStream(InputStream in, String tag, String prefix)
+  {
+    this(in, tag, prefix, 0);
+  }
+
+  // With a call-site ID, prefix only contains the placeholder values
+  public LoggingInputStream(InputStream in, String tag, String prefix, int site)
   {
     super(in);
     this.tag = tag;
     this.prefix = prefix;
+    this.site = site;
+  }
+
+  private char[] getBuffer(int size)
+  {
+    if (this.buffer != null && this.buffer.length >= size)
+      return this.buffer;
+
+    // Don't hold on to huge buffers, these are rarely needed
+    char[] result = new char[size];
+    if (size <= MAX_BUFFER_SIZE)
+      this.buffer = result;
+    return result;
+  }
+
+  // Single bytes are collected and logged together. The time limit is only
+  // checked when the next byte arrives, data of an idle stream stays pending
+  // until it is flushed or closed.
+  private void logByte(int b)
+  {
+    // Only the summary is logged, no need to collect anything
+    if (StreamCapture.mode == StreamCapture.MODE_SUMMARY)
+    {
+      this.capture.count(1);
+      return;
+    }
+
+    if (this.pendingLength > 0 && System.nanoTime() - this.pendingSince > StreamCapture.coalesceTime * 1000000L)
+      this.flushPending();
+
+    if (this.pendingLength == 0)
+    {
+      StreamCapture.activate(this);
+      this.pendingOwner = Thread.currentThread();
+      if (this.pending == null)
+        this.pending = new byte[Math.max(StreamCapture.coalesceBytes, 1)];
+      this.pendingSince = System.nanoTime();
+    }
+
+    this.pending[this.pendingLength++] = (byte)b;
+    if (this.pendingLength == this.pending.length)
+      this.flushPending();
   }
 
-  private String formatByte(byte b)
+  void flushPending()
   {
-    if (b == 0x5C)
-      return "\\\\";
-    else if (b == 0x22)
-      return "\\\"";
-    else if (b >= 0x20 && b < 0x7F)
-      return String.valueOf((char)b);
-    else
-      return String.format("\\x%02x", b);
+    if (this.pendingLength == 0)
+      return;
+
+    int length = this.pendingLength;
+    this.pendingLength = 0;
+    this.pendingOwner = null;
+    this.logCaptured(this.pending, 0, length);
+  }
+
+  // Called when another stream is used, only flushes bytes collected by the
+  // current thread. Another thread might be using this stream meanwhile.
+  void flushPending(Thread owner)
+  {
+    if (this.pendingOwner == owner)
+      this.flushPending();
+  }
+
+  private void log(byte[] data, int off, int len)
+  {
+    if (StreamCapture.mode == StreamCapture.MODE_SUMMARY)
+    {
+      this.capture.count(len);
+      return;
+    }
+
+    // Bytes collected previously have to be logged first
+    StreamCapture.activate(this);
+    this.flushPending();
+    this.logCaptured(data, off, len);
   }
 
-  private void log(String data)
+  private void logCaptured(byte[] data, int off, int len)
   {
-    String output = String.format("%s: received data \"%s\"", this.prefix, data);
+    // Data might be logged only partially or not at all
+    if (this.capture != null)
+    {
+      len = this.capture.add(data, off, len);
+      if (len == 0)
+        return;
+    }
+    this.logData(data, off, len);
+  }
+
+  private void logData(byte[] data, int off, int len)
+  {
+    if (logToFile)
+    {
+      LogFile.received(this.tag, this.site, this.prefix, data, off, len);
+      return;
+    }
+
+    // Each byte takes up to four characters when escaped
+    char[] buffer = this.getBuffer(len * 4);
+    int size = 0;
+    for (int i = off; i < off + len; i++)
+    {
+      char[] escaped = ESCAPES[data[i] & 0xFF];
+      for (int j = 0; j < escaped.length; j++)
+        buffer[size++] = escaped[j];
+    }
+
+    StringBuilder builder = new StringBuilder(size + 64);
+    if (this.site != 0)
+      builder.append('#').append(this.site).append('\t');
+    String output = builder
+      .append(this.prefix)
+      .append(": received data \"")
+      .append(buffer, 0, size)
+      .append('"')
+      .toString();
     for (int i = 0; i < output.length(); i += 4000)
+      LogSink.log(this.tag, output.substring(i, Math.min(i + 4000, output.length())));
+  }
+
+  private void logSummary(String summary)
+  {
+    if (logToFile)
     {
-      // Calling indirectly to avoid dependency on android.jar during build
-      try
-      {
-        Class<?> logClass = Class.forName("android.util.Log");
-        Method logMethod = logClass.getDeclaredMethod("i", String.class, String.class);
-        logMethod.invoke(null, this.tag, output.substring(i, Math.min(i + 4000, output.length())));
-      }
-      catch (Exception e)
+      LogFile.closed(this.tag, this.site, this.prefix, summary);
+      return;
+    }
+
+    StringBuilder builder = new StringBuilder();
+    if (this.site != 0)
+      builder.append('#').append(this.site).append('\t');
+    LogSink.log(this.tag, builder.append(this.prefix).append(": ").append(summary).toString());
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    try
+    {
+      super.close();
+    }
+    finally
+    {
+      // Remaining data and summary are logged once, even if closing fails
+      this.flushPending();
+      if (this.capture != null && !this.closed)
       {
-        e.printStackTrace();
+        this.closed = true;
+        byte[] tail = this.capture.takeTail();
+        if (tail.length > 0)
+          this.logData(tail, 0, tail.length);
+        this.logSummary(this.capture.getSummary("receiving"));
       }
     }
   }
@@ -66,7 +227,9 @@ public class LoggingInputStream extends FilterInputStream
     {
       int result = super.read();
       if (result >= 0)
-        this.log(this.formatByte((byte)result));
+      {
+        this.logByte(result);
+      }
       return result;
     }
     finally
@@ -86,12 +249,7 @@ public class LoggingInputStream extends FilterInputStream
     {
       int result = super.read(b);
       if (result > 0)
-      {
-        StringBuilder builder = new StringBuilder();
-        for (int i = 0; i < result; i++)
-          builder.append(this.formatByte(b[i]));
-        this.log(builder.toString());
-      }
+        this.log(b, 0, result);
       return result;
     }
     finally
@@ -111,12 +269,7 @@ public class LoggingInputStream extends FilterInputStream
     {
       int result = super.read(b, off, len);
       if (result >= 0)
-      {
-        StringBuilder builder = new StringBuilder();
-        for (int i = off; i < off + result; i++)
-          builder.append(this.formatByte(b[i]));
-        this.log(builder.toString());
-      }
+        this.log(b, off, result);
       return result;
     }
     finally
@@ -6,38 +6,69 @@
 
 package info.palant.apkInstrumentation;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
 import java.net.URL;
 import java.net.JarURLConnection;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.DexFile;
 
 import soot.G;
+import soot.Pack;
 import soot.PackManager;
+import soot.PhaseOptions;
+import soot.Printer;
 import soot.Scene;
 import soot.SootClass;
+import soot.SootMethod;
 import soot.Transform;
+import soot.Transformer;
+import soot.dexpler.DexFileProvider;
 import soot.options.Options;
+import soot.toolkits.scalar.ConstantValueToInitializerTransformer;
 
 public class Main
 {
-  final static String INPUT_FILE = "input.dex";
-  final static String OUTPUT_FILE = "classes.dex";
+  final static String OUTPUT_DIR_PREFIX = "output";
+  final static Pattern ROOT_DEX_PATTERN = Pattern.compile("classes\\d*\\.dex");
+
+  private static boolean strict = false;
+  private static boolean callSiteIds = false;
+  private static int dexSpillSize = 32 * 1024 * 1024;
 
   public static void main(String[] args) throws IOException
   {
     String action = "rewrite";
+    String[] actionArgs = new String[0];
     String configPath = "config.properties";
     for (int i = 0; i < args.length; i++)
     {
@@ -52,6 +83,8 @@ public class Main
           }
           configPath = args[++i];
         }
+        else if (args[i].equals("--strict"))
+          strict = true;
         else
         {
           System.err.println("Unsupported option: " + args[i]);
@@ -61,10 +94,67 @@ public class Main
       else
       {
         action = args[i];
+        actionArgs = Arrays.copyOfRange(args, i + 1, args.length);
         break;
       }
     }
 
+    // Decoding log files happens on the host, no configuration needed
+    if (action.equals("decode"))
+    {
+      Map<Integer,CallSites.Site> sites = null;
+      if (actionArgs.length >= 2 && actionArgs[0].equals("--sites"))
+      {
+        sites = CallSites.read(new File(actionArgs[1]));
+        actionArgs = Arrays.copyOfRange(actionArgs, 2, actionArgs.length);
+      }
+
+      if (actionArgs.length < 1 || actionArgs.length > 2)
+      {
+        System.err.println("Please specify the log file to decode and optionally the output file after decode action.");
+        System.exit(-3);
+      }
+
+      PrintStream output = (actionArgs.length > 1 ? new PrintStream(actionArgs[1], "UTF-8") : System.out);
+      LogDecoder.decode(new File(actionArgs[0]), output, sites);
+      output.close();
+      return;
+    }
+
+    // Queries only need the index, not the APK or Soot
+    if (action.equals("query"))
+    {
+      if (actionArgs.length < 2)
+      {
+        System.err.println("Please specify the index file and the query after query action.");
+        System.exit(-3);
+      }
+
+      CallIndex index = CallIndex.read(new File(actionArgs[0]));
+      String query = actionArgs[1];
+      String spec = String.join(" ", Arrays.copyOfRange(actionArgs, 2, actionArgs.length));
+      if (query.equals("callers") && !spec.isEmpty())
+        index.printCallers(new MethodConfig(spec, ""), System.out);
+      else if (query.equals("methods") && !spec.isEmpty())
+        index.printMethods(new MethodConfig(spec, ""), System.out);
+      else if (query.equals("count") && spec.isEmpty())
+      {
+        Properties config = readConfig(configPath);
+        if (config == null)
+        {
+          System.err.println("Configuration file " + configPath + " does not exist or is not a regular file.");
+          System.exit(1);
+        }
+        index.printCounts(config, System.out);
+      }
+      else
+      {
+        System.err.println("Unsupported query, expected callers <methods>, methods <methods> or count.");
+        System.exit(-3);
+      }
+      return;
+    }
+
     Properties config = readConfig(configPath);
     if (config == null)
     {
@@ -90,7 +180,7 @@ public class Main
       System.exit(3);
     }
 
-    String outputOption = action.equals("rewrite") ? "output" : "decompileDir";
+    String outputOption = action.equals("decompile") ? "decompileDir" : action.equals("index") ? "indexFile" : "output";
     String output = config.getProperty(outputOption);
     if (output == null)
     {
@@ -100,32 +190,78 @@ public class Main
 
     String keystore = config.getProperty("keystore");
     String keypass = config.getProperty("keypass");
+    boolean v1Signing = Boolean.parseBoolean(config.getProperty("v1Signing", "true"));
+
+    int threads = Integer.parseInt(config.getProperty("threads", "1"));
+    if (threads < 1)
+    {
+      System.err.println("Please specify a positive number for threads option in config file.");
+      System.exit(6);
+    }
+
+    dexSpillSize = Integer.parseInt(config.getProperty("dexSpillSize", String.valueOf(dexSpillSize)));
+    if (dexSpillSize < 0)
+    {
+      System.err.println("Please specify a non-negative number for dexSpillSize option in config file.");
+      System.exit(6);
+    }
 
     String platformVersion = config.getProperty("platformVersion");
     String platformsPath = sdkDir + File.separator + "platforms";
-    if (action.equals("rewrite"))
+    if (action.equals("rewrite") || action.equals("batch"))
     {
-      if (keystore == null || keypass == null)
+      APKSigner signer = null;
+      if (keystore != null && keypass != null)
+        signer = new APKSigner(keystore, keypass, v1Signing);
+      else
         System.err.println("Warning: keystore or keypass missing in the config file, package will not be signed.");
 
-      File tempDir = Files.createTempDirectory(null).toFile();
-      try
-      {
-        transformAPK(config, input, output, tempDir.getPath(), platformsPath, platformVersion);
-      }
-      finally
+      callSiteIds = CallSites.isEnabled(config);
+
+      // Call-site IDs are assigned across all classes, cached classes would
+      // have conflicting IDs.
+      RewriteCache cache = null;
+      String cacheDir = config.getProperty("cacheDir");
+      if (cacheDir != null && callSiteIds)
+        System.err.println("Warning: call-site IDs are enabled, rewrite cache won't be used.");
+      else if (cacheDir != null && CallSites.isUsed(config))
+        System.err.println("Warning: call-site IDs are needed for sampling, rate limiting, profiling or counting calls, rewrite cache won't be used.");
+      else if (cacheDir != null)
+        cache = new RewriteCache(cacheDir, config, getJARPath());
+
+      boolean success = true;
+      if (action.equals("rewrite"))
+        rewriteAPK(createTransformers(config), input, output, platformsPath, platformVersion, threads, signer, cache);
+      else
       {
-        for (String entry: tempDir.list())
-          new File(tempDir, entry).delete();
-        tempDir.delete();
+        int slots = Integer.parseInt(config.getProperty("batchSlots", "1"));
+        if (slots < 1)
+        {
+          System.err.println("Please specify a positive number for batchSlots option in config file.");
+          System.exit(6);
+        }
+
+        List<Map<String,Transformer>> slotTransformers = new ArrayList<Map<String,Transformer>>();
+        for (int i = 0; i < slots; i++)
+          slotTransformers.add(createTransformers(config));
+
+        success = runBatch(getBatchJobs(input, output), slotTransformers, platformsPath, platformVersion, threads, signer, cache);
       }
 
-      if (keystore != null && keypass != null)
-        signAPK(sdkDir, keystore, keypass, output);
+      if (cache != null)
+        System.out.println("Rewrite cache: " + cache.getHits() + " hits, " + cache.getMisses() + " misses");
+      if (!success)
+        System.exit(7);
     }
     else if (action.equals("decompile"))
     {
-      decompileAPK(input, output, platformsPath, platformVersion);
+      String filterSpec = config.getProperty("decompileFilter");
+      MethodConfig filter = (filterSpec != null ? new MethodConfig(filterSpec, "") : null);
+      decompileAPK(input, output, platformsPath, platformVersion, threads, filter);
+    }
+    else if (action.equals("index"))
+    {
+      indexAPK(input, output, platformsPath, platformVersion, threads);
     }
     else
     {
@@ -165,7 +301,15 @@ public class Main
     }
   }
 
-  private static void setupSoot(String platformsPath, String platformVersion, String tempDir, String inputFile)
+  private static void deleteRecursively(File file)
+  {
+    if (file.isDirectory())
+      for (String entry: file.list())
+        deleteRecursively(new File(file, entry));
+    file.delete();
+  }
+
+  private static void setupSoot(String platformsPath, String platformVersion, String tempDir, List<String> inputFiles)
   {
     // Reset all Soot settings
     G.reset();
@@ -179,17 +323,18 @@ public class Main
     if (platformVersion != null)
       Options.v().set_android_api_version(Integer.parseInt(platformVersion));
     Options.v().set_src_prec(Options.src_prec_apk);
-    Options.v().set_process_dir(Collections.singletonList(inputFile));
+    Options.v().set_process_dir(inputFiles);
     Options.v().set_soot_classpath(getJARPath());
     Options.v().set_include_all(true);
     Options.v().set_ignore_resolving_levels(true);
     Options.v().set_process_multiple_dex(true);
+    Options.v().set_keep_offset(callSiteIds);
     Options.v().set_whole_program(true);
 
     // Write (APK Generation) Options
     Options.v().set_output_format(Options.output_format_dex);
     Options.v().set_output_dir(tempDir);
-    Options.v().set_validate(true);
+    Options.v().set_validate(strict);
 
     // Load classes
     Scene.v().addBasicClass("android.util.Log", SootClass.SIGNATURES);
@@ -202,164 +347,568 @@ public class Main
     Scene.v().loadNecessaryClasses();
   }
 
-  private static void addTransformers(Properties config)
+  private static Map<String,Transformer> createTransformers(Properties config)
   {
-    boolean hasTransformers = false;
+    // Transformers are created once and added to each new scene, keys are
+    // phase names. Body transformers share a single pass over each body, in
+    // the order given here.
+    Map<String,Transformer> result = new LinkedHashMap<String,Transformer>();
+    List<UnitTransformer> bodyTransformers = new ArrayList<UnitTransformer>();
     if (config.getProperty("MethodLogger.enabled") != null)
-    {
-      PackManager.v().getPack("jtp").add(new Transform("jtp.MethodLogger", new MethodLogger(config)));
-      hasTransformers = true;
-    }
+      bodyTransformers.add(new MethodLogger(config));
     if (config.getProperty("AssignmentRemover.enabled") != null)
-    {
-      PackManager.v().getPack("jtp").add(new Transform("jtp.AssignmentRemover", new AssignmentRemover(config)));
-      hasTransformers = true;
-    }
+      bodyTransformers.add(new AssignmentRemover(config));
     if (config.getProperty("CallRemover.enabled") != null)
+      bodyTransformers.add(new CallRemover(config));
+    // Counting calls before other components add calls of their own
+    if (config.getProperty("CallCounter.enabled") != null)
     {
-      PackManager.v().getPack("jtp").add(new Transform("jtp.CallRemover", new CallRemover(config)));
-      hasTransformers = true;
+      result.put("wjtp.CallCounterInjector", new CallCounter.Injector(config));
+      bodyTransformers.add(new CallCounter(config));
     }
     if (config.getProperty("CallLogger.enabled") != null)
-    {
-      PackManager.v().getPack("jtp").add(new Transform("jtp.CallLogger", new CallLogger(config)));
-      hasTransformers = true;
-    }
+      bodyTransformers.add(new CallLogger(config));
     if (config.getProperty("StreamLogger.enabled") != null)
     {
-      PackManager.v().getPack("jtp").add(new Transform("jtp.StreamLogger", new StreamLogger(config)));
-      hasTransformers = true;
+      result.put("wjtp.StreamLoggerInjector", new StreamLogger.Injector(config));
+      bodyTransformers.add(new StreamLogger(config));
     }
-    if (config.getProperty("ClassReplacer.enabled") != null)
+    if (config.getProperty("MethodProfiler.enabled") != null)
     {
-      PackManager.v().getPack("wjtp").add(new Transform("wjtp.ClassReplacer", new ClassReplacer(config)));
-      hasTransformers = true;
+      result.put("wjtp.MethodProfilerInjector", new MethodProfiler.Injector(config));
+      bodyTransformers.add(new MethodProfiler(config));
     }
+    if (config.getProperty("ClassReplacer.enabled") != null)
+      result.put("wjtp.ClassReplacer", new ClassReplacer(config));
+    if (!bodyTransformers.isEmpty())
+      result.put("jtp.BodyDispatcher", new BodyDispatcher(bodyTransformers));
+
+    LogSinkInjector sinkInjector = new LogSinkInjector(config);
+    if (sinkInjector.isNeeded())
+      result.put("wjtp.LogSinkInjector", sinkInjector);
 
-    if (!hasTransformers)
+    if (result.isEmpty())
     {
       System.err.println("No transformers are enabled in the config.");
       System.exit(5);
     }
+    return result;
   }
 
-  private static void transformAPK(Properties config, String input, String output, String tempDir, String platformsPath, String platformVersion) throws IOException
+  private static void addTransformers(Map<String,Transformer> transformers)
   {
-    String dexInput = tempDir + File.separator + INPUT_FILE;
-    String dexOutput = tempDir + File.separator + OUTPUT_FILE;
-
-    ZipInputStream zipInput = new ZipInputStream(new FileInputStream(input));
-    ZipOutputStream zipOutput = new ZipOutputStream(new FileOutputStream(output));
-    ZipEntry entry;
-    byte[] buffer = new byte[1024*64];
-    while ((entry = zipInput.getNextEntry()) != null)
-    {
-      ZipEntry newEntry = new ZipEntry(entry);
-      newEntry.setCompressedSize(-1);
-      zipOutput.putNextEntry(newEntry);
-      if (entry.getName().endsWith(".dex"))
-      {
-        FileOutputStream dexOutputStream = new FileOutputStream(dexInput);
-        int numBytes;
-        while ((numBytes = zipInput.read(buffer, 0, buffer.length)) != -1)
-          dexOutputStream.write(buffer, 0, numBytes);
-        dexOutputStream.close();
-
-        setupSoot(platformsPath, platformVersion, tempDir, dexInput);
-        addTransformers(config);
-        PackManager.v().runPacks();
-        PackManager.v().writeOutput();
-
-        FileInputStream dexInputStream = new FileInputStream(dexOutput);
-        while ((numBytes = dexInputStream.read(buffer)) != -1)
-          zipOutput.write(buffer, 0, numBytes);
-        dexInputStream.close();
-      }
-      else
+    for (Map.Entry<String,Transformer> entry: transformers.entrySet())
+    {
+      String phaseName = entry.getKey();
+      String packName = phaseName.substring(0, phaseName.indexOf('.'));
+      PackManager.v().getPack(packName).add(new Transform(phaseName, entry.getValue()));
+    }
+  }
+
+  private static void runPacks(int threads)
+  {
+    // Soot runs body packs on all available processors and there is no way to
+    // configure this. So jtp is skipped here and applied on our own thread pool
+    // afterwards.
+    PhaseOptions.v().setPhaseOption("jtp", "enabled:false");
+    PackManager.v().runPacks();
+    PhaseOptions.v().setPhaseOption("jtp", "enabled:true");
+
+    Pack pack = PackManager.v().getPack("jtp");
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try
+    {
+      List<Future<?>> results = new ArrayList<Future<?>>();
+      for (SootClass cls: new ArrayList<SootClass>(Scene.v().getApplicationClasses()))
       {
-        int numBytes;
-        while ((numBytes = zipInput.read(buffer, 0, buffer.length)) != -1)
-          zipOutput.write(buffer, 0, numBytes);
+        results.add(executor.submit(() -> {
+          for (SootMethod method: new ArrayList<SootMethod>(cls.getMethods()))
+            if (method.isConcrete())
+              pack.apply(method.retrieveActiveBody());
+        }));
       }
-      zipInput.closeEntry();
-      zipOutput.closeEntry();
+
+      for (Future<?> result: results)
+        result.get();
+    }
+    catch (InterruptedException e)
+    {
+      throw new RuntimeException("Interrupted while transforming method bodies", e);
+    }
+    catch (ExecutionException e)
+    {
+      throw new RuntimeException("Transforming method bodies failed", e.getCause());
+    }
+    finally
+    {
+      executor.shutdownNow();
     }
-    zipInput.close();
-    zipOutput.close();
   }
 
-  private static void runCommand(String[] command) throws IOException
+  private static void rewriteAPK(Map<String,Transformer> transformers, String input, String output, String platformsPath, String platformVersion, int threads, APKSigner signer, RewriteCache cache) throws IOException
   {
-    ProcessBuilder builder = new ProcessBuilder(command);
-    builder.inheritIO();
-    Process process = builder.start();
+    File tempDir = Files.createTempDirectory(null).toFile();
     try
     {
-      int result = process.waitFor();
-      if (result != 0)
-        throw new RuntimeException(command[0] + " exited with error code " + result);
+      transformAPK(transformers, input, output, tempDir.getPath(), platformsPath, platformVersion, threads, signer, cache);
     }
-    catch (InterruptedException e)
+    finally
+    {
+      deleteRecursively(tempDir);
+    }
+  }
+
+  private static void transformAPK(Map<String,Transformer> transformers, String input, String output, String tempDir, String platformsPath, String platformVersion, int threads, APKSigner signer, RewriteCache cache) throws IOException
+  {
+    ZipReader zipInput = new ZipReader(new File(input));
+    try
+    {
+      boolean hasDex = false;
+      for (ZipReader.Entry entry: zipInput.getEntries())
+        if (entry.getName().endsWith(".dex"))
+          hasDex = true;
+      if (!hasDex)
+        throw new RuntimeException("No dex files found in " + input);
+
+      // JAR signature depends on the Android versions supported by the APK,
+      // fail before processing if the key cannot be used.
+      int minSdkVersion = 0;
+      if (signer != null && signer.isV1Enabled())
+      {
+        minSdkVersion = APKSigner.getMinSdkVersion(zipInput);
+        signer.getV1DigestAlgorithm(minSdkVersion);
+      }
+
+      // Soot reads all dex files from the APK into memory, including those
+      // outside of the root directory. The same data is used to determine which
+      // classes are in which dex file. Soot's order is kept, it prefers root
+      // classes*.dex files if multiple dex files define a class.
+      setupSoot(platformsPath, platformVersion, tempDir, Collections.singletonList(input));
+      Map<String,DexBackedDexFile> dexInputs = new LinkedHashMap<String,DexBackedDexFile>();
+      for (DexFileProvider.DexContainer<? extends DexFile> container: DexFileProvider.v().getDexFromSource(new File(input)))
+        dexInputs.put(container.getBase().getEntryName(), (DexBackedDexFile)container.getBase().getDexFile());
+
+      Map<String,Long> dexSizes = new HashMap<String,Long>();
+      for (ZipReader.Entry entry: zipInput.getEntries())
+        if (dexInputs.containsKey(entry.getName()))
+          dexSizes.put(entry.getName(), entry.getSize());
+
+      // Classes with cached rewriting results won't be transformed
+      Map<String,RewriteCache.Entry> cacheEntries = new HashMap<String,RewriteCache.Entry>();
+      if (cache != null)
+      {
+        cacheEntries = cache.lookup(dexInputs.values(), threads);
+        for (RewriteCache.Entry entry: cacheEntries.values())
+        {
+          SootClass cls = Scene.v().getSootClassUnsafe(entry.getClassName(), false);
+          if (entry.isHit() && cls != null)
+            cls.setLibraryClass();
+        }
+      }
+
+      addTransformers(transformers);
+      runPacks(threads);
+
+      // Call-site IDs can only be assigned once all bodies have been transformed
+      CallSites sites = CallSites.remove();
+      if (sites != null)
+      {
+        sites.assignIds();
+        LogSinkInjector.setSiteCount(sites.size() + 1);
+        MethodProfiler.setMethodNames(sites);
+        CallCounter.setSiteNames(sites);
+        if (callSiteIds)
+          sites.write(new File(output + ".sites"));
+      }
+      Map<String,List<DexOutput>> dexOutputs = writeDexFiles(dexInputs, dexSizes, tempDir, cacheEntries);
+
+      if (cache != null)
+      {
+        Set<String> modifiedClasses = new HashSet<String>();
+        for (SootClass cls: Scene.v().getApplicationClasses())
+          if (ModifiedTag.isModified(cls))
+            modifiedClasses.add(cls.getName());
+
+        List<DexOutput> outputs = new ArrayList<DexOutput>();
+        for (List<DexOutput> files: dexOutputs.values())
+          outputs.addAll(files);
+        cache.storeAll(cacheEntries, outputs, modifiedClasses);
+      }
+
+      // Entries that didn't change are copied without decompressing them
+      ZipWriter zipOutput = new ZipWriter(new File(output), signer, minSdkVersion);
+      try
+      {
+        Set<String> entryNames = new HashSet<String>();
+        List<DexOutput> extraDexFiles = new ArrayList<DexOutput>();
+        ZipReader.Entry dexTemplate = null;
+        for (ZipReader.Entry entry: zipInput.getEntries())
+        {
+          // Old signature is no longer valid, the new one will replace it
+          if (signer != null && APKSigner.isSignatureFile(entry.getName()))
+            continue;
+
+          entryNames.add(entry.getName());
+          List<DexOutput> files = dexOutputs.get(entry.getName());
+          if (files != null)
+          {
+            // Only classes*.dex files in the root directory are loaded
+            // automatically, additional dex files elsewhere would be ignored.
+            if (files.size() > 1 && !ROOT_DEX_PATTERN.matcher(entry.getName()).matches())
+              throw new RuntimeException("Classes in " + entry.getName() + " no longer fit into a single dex file after rewriting, this is only supported for classes*.dex files in the root directory");
+
+            zipOutput.writeEntry(entry.getName(), entry, files.get(0).getData());
+            extraDexFiles.addAll(files.subList(1, files.size()));
+            dexTemplate = entry;
+          }
+          else
+            zipOutput.copyEntry(zipInput, entry);
+        }
+
+        // Classes that no longer fit into their original dex file go into new ones
+        int dexIndex = 2;
+        for (DexOutput file: extraDexFiles)
+        {
+          while (entryNames.contains("classes" + dexIndex + ".dex"))
+            dexIndex++;
+
+          String name = "classes" + dexIndex + ".dex";
+          entryNames.add(name);
+          zipOutput.writeEntry(name, dexTemplate, file.getData());
+        }
+        zipOutput.close();
+      }
+      finally
+      {
+        zipOutput.abort();
+      }
+    }
+    finally
     {
-      throw new RuntimeException(command[0] + " interrupted", e);
+      zipInput.close();
     }
   }
 
-  private static void signAPK(String sdkDir, String keystore, String keypass, String output) throws IOException
+  private static Map<String,List<DexOutput>> writeDexFiles(Map<String,DexBackedDexFile> dexInputs, Map<String,Long> dexSizes, String tempDir, Map<String,RewriteCache.Entry> cacheEntries) throws IOException
   {
-    File buildToolsDir = null;
-    for (File file: new File(sdkDir, "build-tools").listFiles())
+    // Assign each application class to the dex file it originally came from,
+    // injected classes go into the first dex file. Only dex files containing
+    // modified or injected classes are written.
+    Map<String,List<SootClass>> classes = new LinkedHashMap<String,List<SootClass>>();
+    Map<String,List<RewriteCache.Entry>> cachedClasses = new HashMap<String,List<RewriteCache.Entry>>();
+    Map<String,List<ClassDef>> shadowedClasses = new HashMap<String,List<ClassDef>>();
+    Map<String,String> classOrigins = new HashMap<String,String>();
+    for (Map.Entry<String,DexBackedDexFile> dexInput: dexInputs.entrySet())
+    {
+      classes.put(dexInput.getKey(), new ArrayList<SootClass>());
+      cachedClasses.put(dexInput.getKey(), new ArrayList<RewriteCache.Entry>());
+      shadowedClasses.put(dexInput.getKey(), new ArrayList<ClassDef>());
+      for (ClassDef cls: dexInput.getValue().getClasses())
+      {
+        String className = RewriteCache.getClassName(cls);
+        if (!classOrigins.containsKey(className))
+          classOrigins.put(className, dexInput.getKey());
+        else
+          shadowedClasses.get(dexInput.getKey()).add(cls);
+      }
+
+      // Soot only loads the first definition of a class, other copies are kept
+      // as they are.
+      int shadowed = shadowedClasses.get(dexInput.getKey()).size();
+      if (shadowed > 0)
+        System.err.println("Warning: " + shadowed + " classes in " + dexInput.getKey() + " are also defined in another dex file, these won't be changed.");
+    }
+
+    String firstDex = dexInputs.keySet().iterator().next();
+    for (SootClass cls: Scene.v().getApplicationClasses())
     {
-      if (!file.isDirectory())
+      if (cls.isPhantom())
         continue;
-      if (buildToolsDir == null || file.getName().compareTo(buildToolsDir.getName()) > 0)
-        buildToolsDir = file;
+
+      String origin = classOrigins.get(cls.getName());
+      classes.get(origin != null ? origin : firstDex).add(cls);
     }
 
-    if (buildToolsDir == null)
-      throw new RuntimeException("Could not find build tools in Android SDK directory " + sdkDir);
+    // Classes found in the rewrite cache are spliced into the output as is
+    for (RewriteCache.Entry entry: cacheEntries.values())
+    {
+      String origin = classOrigins.get(entry.getClassName());
+      if (entry.isHit())
+        cachedClasses.get(origin != null ? origin : firstDex).add(entry);
+    }
+
+    Map<String,List<DexOutput>> result = new LinkedHashMap<String,List<DexOutput>>();
+    int index = 0;
+    for (Map.Entry<String,List<SootClass>> entry: classes.entrySet())
+    {
+      // Keep dex files without any changes as they are
+      boolean modified = false;
+      for (SootClass cls: entry.getValue())
+        if (ModifiedTag.isModified(cls) || !entry.getKey().equals(classOrigins.get(cls.getName())))
+          modified = true;
+      for (RewriteCache.Entry cached: cachedClasses.get(entry.getKey()))
+        if (cached.isModified())
+          modified = true;
+      if (!modified)
+        continue;
 
-    String suffix = "";
-    if (System.getProperty("os.name").toLowerCase().startsWith("win"))
-      suffix = ".exe";
+      RewriteCache.Printer printer = new RewriteCache.Printer();
+      for (SootClass cls: entry.getValue())
+        printer.add(cls);
+      for (RewriteCache.Entry cached: cachedClasses.get(entry.getKey()))
+        printer.addClassDef(cached.getClassDef());
+      for (ClassDef cls: shadowedClasses.get(entry.getKey()))
+        printer.addClassDef(cls);
+
+      // Output is kept in memory until it is added to the APK, unless the dex
+      // file is large. Output size is usually close to input size.
+      Long size = dexSizes.get(entry.getKey());
+      if (size == null)
+        throw new RuntimeException("Dex file " + entry.getKey() + " loaded by Soot wasn't found in the APK");
+      File outputDir = null;
+      if (size > dexSpillSize)
+      {
+        outputDir = new File(tempDir, OUTPUT_DIR_PREFIX + index++);
+        outputDir.mkdir();
+      }
+      result.put(entry.getKey(), printer.write(outputDir, (int)Math.min(size, dexSpillSize)));
+    }
+    return result;
+  }
 
-    File zipalign = new File(buildToolsDir, "zipalign" + suffix);
-    File tempDir = Files.createTempDirectory(null).toFile();
-    try
+  private static class BatchJob
+  {
+    final String input;
+    final String output;
+    long time = 0;
+    Exception error = null;
+
+    BatchJob(String input, String output)
+    {
+      this.input = input;
+      this.output = output;
+    }
+  }
+
+  private static List<BatchJob> getBatchJobs(String input, String outputDir) throws IOException
+  {
+    // Input is either a directory with APK files or a list of APK files, one
+    // per line, optionally followed by a tab and the output path.
+    List<BatchJob> result = new ArrayList<BatchJob>();
+    File inputFile = new File(input);
+    if (inputFile.isDirectory())
     {
-      File tempFile =  new File(tempDir, "aligned.apk");
-      runCommand(new String[] {
-        zipalign.getPath(),
-        "-f", "-p", "4",
-        output,
-        tempFile.getPath()
+      String[] names = inputFile.list();
+      Arrays.sort(names);
+      for (String name: names)
+        if (name.endsWith(".apk"))
+          result.add(new BatchJob(new File(inputFile, name).getPath(), new File(outputDir, name).getPath()));
+    }
+    else
+    {
+      for (String line: Files.readAllLines(inputFile.toPath()))
+      {
+        line = line.trim();
+        if (line.equals("") || line.startsWith("#"))
+          continue;
+
+        int index = line.indexOf('\t');
+        if (index >= 0)
+          result.add(new BatchJob(line.substring(0, index).trim(), line.substring(index + 1).trim()));
+        else
+          result.add(new BatchJob(line, new File(outputDir, new File(line).getName()).getPath()));
+      }
+    }
+    return result;
+  }
+
+  private static class ThreadGlobals implements G.GlobalObjectGetter
+  {
+    // Threads started by Soot while processing an app need to see the same
+    // globals as the slot thread that started them.
+    private final InheritableThreadLocal<G> globals = new InheritableThreadLocal<G>()
+    {
+      @Override
+      protected G initialValue()
+      {
+        return new G();
+      }
+    };
+
+    @Override
+    public G getG()
+    {
+      return this.globals.get();
+    }
+
+    @Override
+    public void reset()
+    {
+      this.globals.set(new G());
+    }
+  }
+
+  private static boolean runBatch(List<BatchJob> jobs, List<Map<String,Transformer>> slotTransformers, String platformsPath, String platformVersion, int threads, APKSigner signer, RewriteCache cache)
+  {
+    // Each slot processes one app at a time with its own Soot globals
+    G.setGlobalObjectGetter(new ThreadGlobals());
+
+    long start = System.nanoTime();
+    Queue<BatchJob> queue = new ConcurrentLinkedQueue<BatchJob>(jobs);
+    List<Thread> workers = new ArrayList<Thread>();
+    for (Map<String,Transformer> transformers: slotTransformers)
+    {
+      Thread worker = new Thread(() -> {
+        BatchJob job;
+        while ((job = queue.poll()) != null)
+        {
+          long jobStart = System.nanoTime();
+          try
+          {
+            rewriteAPK(transformers, job.input, job.output, platformsPath, platformVersion, threads, signer, cache);
+          }
+          catch (Exception e)
+          {
+            System.err.println("Rewriting " + job.input + " failed:");
+            e.printStackTrace();
+            job.error = e;
+          }
+          job.time = System.nanoTime() - jobStart;
+        }
       });
-      Files.copy(tempFile.toPath(), new File(output).toPath(), StandardCopyOption.REPLACE_EXISTING);
+      worker.start();
+      workers.add(worker);
     }
-    finally
+
+    try
     {
-      for (String entry: tempDir.list())
-        new File(tempDir, entry).delete();
-      tempDir.delete();
+      for (Thread worker: workers)
+        worker.join();
     }
+    catch (InterruptedException e)
+    {
+      throw new RuntimeException("Interrupted while waiting for batch to complete", e);
+    }
+
+    int failed = 0;
+    for (BatchJob job: jobs)
+      if (job.error != null)
+        failed++;
 
-    File apksigner = new File(buildToolsDir, "apksigner" + suffix);
-    runCommand(new String[] {
-      apksigner.getPath(),
-      "sign",
-      "--ks", keystore,
-      "--ks-pass", "pass:" + keypass,
-      output
-    });
+    System.out.println(String.format("Processed %d APKs in %.1f s, %d failed:", jobs.size(), (System.nanoTime() - start) / 1e9, failed));
+    for (BatchJob job: jobs)
+    {
+      System.out.println(String.format("%8.1f s  %-6s  %s%s",
+        job.time / 1e9,
+        job.error == null ? "ok" : "FAILED",
+        job.input,
+        job.error == null ? "" : ": " + job.error
+      ));
+    }
+    return failed == 0;
   }
 
-  private static void decompileAPK(String input, String output, String platformsPath, String platformVersion) throws IOException
+  private static void decompileAPK(String input, String output, String platformsPath, String platformVersion, int threads, MethodConfig filter) throws IOException
   {
-    setupSoot(platformsPath, platformVersion, output, input);
+    setupSoot(platformsPath, platformVersion, output, Collections.singletonList(input));
     Options.v().set_output_format(Options.output_format_jimple);
-    Options.v().set_hierarchy_dirs(true);
 
-    PackManager.v().runPacks();
-    PackManager.v().writeOutput();
+    // Each class is printed as soon as its bodies are ready and the bodies are
+    // released afterwards, so that these don't accumulate in memory.
+    ZipWriter archive = (output.endsWith(".zip") ? new ZipWriter(new File(output)) : null);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try
+    {
+      List<Future<?>> results = new ArrayList<Future<?>>();
+      for (SootClass cls: new ArrayList<SootClass>(Scene.v().getApplicationClasses()))
+      {
+        if (filter != null && !matchesFilter(cls, filter))
+          continue;
+
+        results.add(executor.submit(() -> {
+          decompileClass(cls, output, archive);
+          return null;
+        }));
+      }
+
+      for (Future<?> result: results)
+        result.get();
+
+      // Archive is only completed if all classes were written, incomplete
+      // output is removed.
+      if (archive != null)
+        archive.close();
+    }
+    catch (InterruptedException e)
+    {
+      throw new RuntimeException("Interrupted while decompiling classes", e);
+    }
+    catch (ExecutionException e)
+    {
+      throw new RuntimeException("Decompiling classes failed", e.getCause());
+    }
+    finally
+    {
+      executor.shutdownNow();
+      if (archive != null)
+        archive.abort();
+    }
+  }
+
+  private static void indexAPK(String input, String output, String platformsPath, String platformVersion, int threads) throws IOException
+  {
+    setupSoot(platformsPath, platformVersion, new File(output).getAbsoluteFile().getParent(), Collections.singletonList(input));
+
+    // Call sites are identified by bytecode offset, like in the call-site mapping
+    Options.v().set_keep_offset(true);
+    CallIndex.build(new File(output), threads);
+  }
+
+  // Classes are decompiled if the filter matches any of their methods
+  private static boolean matchesFilter(SootClass cls, MethodConfig filter)
+  {
+    for (SootMethod method: cls.getMethods())
+      if (filter.get(method) != null)
+        return true;
+    return false;
+  }
+
+  private static void decompileClass(SootClass cls, String output, ZipWriter archive) throws IOException
+  {
+    for (SootMethod method: cls.getMethods())
+      if (method.isConcrete())
+        method.retrieveActiveBody();
+
+    // Soot does the same when writing Jimple, constant values of static fields
+    // become assignments in the static initializer.
+    if (!cls.isPhantom())
+      ConstantValueToInitializerTransformer.v().transformClass(cls);
+
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    PrintWriter writer = new PrintWriter(new OutputStreamWriter(buffer, StandardCharsets.UTF_8));
+    // Printer keeps state while printing, the shared instance cannot be used
+    // by multiple threads. Its constructor doesn't use the parameter.
+    new Printer(null).printTo(cls, writer);
+    writer.close();
+
+    for (SootMethod method: cls.getMethods())
+      if (method.hasActiveBody())
+        method.releaseActiveBody();
+
+    // Directories correspond to packages, like Soot's hierarchy_dirs option
+    String name = cls.getName().replace('.', '/') + ".jimple";
+    if (archive != null)
+    {
+      synchronized (archive)
+      {
+        archive.writeEntry(name, buffer.toByteArray());
+      }
+    }
+    else
+    {
+      File file = new File(output, name);
+      file.getParentFile().mkdirs();
+      Files.write(file.toPath(), buffer.toByteArray());
+    }
   }
 }
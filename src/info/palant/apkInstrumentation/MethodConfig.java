@@ -12,15 +12,42 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
 
+import soot.Scene;
 import soot.SootClass;
 import soot.SootMethod;
 import soot.Type;
 
 public class MethodConfig
 {
+  // ConcurrentHashMap doesn't allow null values, this marks methods without
+  // configuration in the cache.
+  private static final String NO_MATCH = new String();
+
   private Map<String,Map<String,String>> methods = new HashMap<String,Map<String,String>>();
-  private List<String[]> classPrefixes = new ArrayList<String[]>();
+  private PrefixNode classPrefixes = new PrefixNode();
+  private Map<SootClass,ClassConfig[]> classCache = new ConcurrentHashMap<SootClass,ClassConfig[]>();
+  private Map<SootMethod,String> methodCache = new ConcurrentHashMap<SootMethod,String>();
+  private volatile Scene cacheScene = null;
+
+  private static class PrefixNode
+  {
+    Map<Character,PrefixNode> children = new HashMap<Character,PrefixNode>();
+    String value = null;
+  }
+
+  private static class ClassConfig
+  {
+    final String prefixConfig;
+    final Map<String,String> methodConfigs;
+
+    ClassConfig(String prefixConfig, Map<String,String> methodConfigs)
+    {
+      this.prefixConfig = prefixConfig;
+      this.methodConfigs = methodConfigs;
+    }
+  }
 
   public MethodConfig(Properties config, String configPrefix)
   {
@@ -51,10 +78,17 @@ public class MethodConfig
       if (index < 0)
       {
         if (token.endsWith("*"))
-          this.classPrefixes.add(new String[] {
-            token.substring(0, token.length() - 1),
-            value
-          });
+        {
+          PrefixNode node = this.classPrefixes;
+          for (int i = 0; i < token.length() - 1; i++)
+          {
+            char c = token.charAt(i);
+            if (!node.children.containsKey(c))
+              node.children.put(c, new PrefixNode());
+            node = node.children.get(c);
+          }
+          node.value = value;
+        }
       }
       else
       {
@@ -68,46 +102,143 @@ public class MethodConfig
 
   }
 
-  public String get(SootMethod method)
+  private String getPrefixConfig(String className)
   {
-    SootClass cls = method.getDeclaringClass();
-    while (true)
+    // Most specific prefix wins
+    PrefixNode node = this.classPrefixes;
+    String result = node.value;
+    for (int i = 0; i < className.length(); i++)
     {
-      String className = cls.getName();
-      for (String[] prefixConfig: this.classPrefixes)
+      node = node.children.get(className.charAt(i));
+      if (node == null)
+        break;
+      if (node.value != null)
+        result = node.value;
+    }
+    return result;
+  }
+
+  private ClassConfig[] getClassConfigs(SootClass cls)
+  {
+    ClassConfig[] result = this.classCache.get(cls);
+    if (result != null)
+      return result;
+
+    List<String> hierarchy = new ArrayList<String>();
+    for (SootClass current = cls; current != null; current = (current.hasSuperclass() ? current.getSuperclass() : null))
+      hierarchy.add(current.getName());
+
+    result = this.getClassConfigs(hierarchy);
+    this.classCache.put(cls, result);
+    return result;
+  }
+
+  private ClassConfig[] getClassConfigs(List<String> hierarchy)
+  {
+    // Collect configuration for the class and all its superclasses, skipping
+    // classes that aren't configured.
+    List<ClassConfig> configs = new ArrayList<ClassConfig>();
+    for (String className: hierarchy)
+    {
+      String prefixConfig = this.getPrefixConfig(className);
+      Map<String,String> methodConfigs = this.methods.get(className);
+      if (prefixConfig != null || methodConfigs != null)
+        configs.add(new ClassConfig(prefixConfig, methodConfigs));
+
+      // Nothing after a matching prefix will be considered
+      if (prefixConfig != null)
+        break;
+    }
+    return configs.toArray(new ClassConfig[0]);
+  }
+
+  static String getSignatureKey(String name, List<String> parameterTypes)
+  {
+    return name + "(" + String.join(",", parameterTypes) + ")";
+  }
+
+  private static String getSignatureKey(SootMethod method)
+  {
+    StringBuilder signature = new StringBuilder(method.getName());
+    signature.append('(');
+    boolean first = true;
+    for (Type type: method.getParameterTypes())
+    {
+      if (first)
+        first = false;
+      else
+        signature.append(',');
+      signature.append(type.toString());
+    }
+    signature.append(')');
+    return signature.toString();
+  }
+
+  private void checkScene()
+  {
+    // Configuration is reused for multiple apps, cached results are only
+    // valid for the scene they were created with.
+    Scene scene = Scene.v();
+    if (scene == this.cacheScene)
+      return;
+
+    synchronized (this)
+    {
+      if (scene != this.cacheScene)
       {
-        if (className.startsWith(prefixConfig[0]))
-          return prefixConfig[1];
+        this.classCache.clear();
+        this.methodCache.clear();
+        this.cacheScene = scene;
       }
+    }
+  }
 
-      Map<String,String> classConfig = this.methods.get(className);
-      if (classConfig != null)
-      {
-        String methodConfig = classConfig.get(method.getName());
-        if (methodConfig == null)
-        {
-          String signature = method.getName() + "(";
-          boolean first = true;
-          for (Type type: method.getParameterTypes())
-          {
-            if (first)
-              first = false;
-            else
-              signature += ",";
-            signature += type.toString();
-          }
-          signature += ")";
-          methodConfig = classConfig.get(signature);
-        }
-        if (methodConfig == null)
-          methodConfig = classConfig.get("*");
+  public String get(SootMethod method)
+  {
+    this.checkScene();
+
+    String result = this.methodCache.get(method);
+    if (result == null)
+    {
+      result = this.resolve(method);
+      this.methodCache.put(method, result == null ? NO_MATCH : result);
+    }
+    return result == NO_MATCH ? null : result;
+  }
+
+  // Looks up a method without Soot, e.g. in the call index. The class
+  // hierarchy starts with the declaring class, followed by its superclasses.
+  public String get(List<String> hierarchy, String name, String signatureKey)
+  {
+    return resolve(this.getClassConfigs(hierarchy), name, null, signatureKey);
+  }
 
-        if (methodConfig != null)
-          return methodConfig;
+  private String resolve(SootMethod method)
+  {
+    return resolve(this.getClassConfigs(method.getDeclaringClass()), method.getName(), method, null);
+  }
+
+  // Signature key is only built from the method if a lookup by name fails
+  private static String resolve(ClassConfig[] classConfigs, String name, SootMethod method, String signatureKey)
+  {
+    for (ClassConfig classConfig: classConfigs)
+    {
+      if (classConfig.prefixConfig != null)
+        return classConfig.prefixConfig;
+
+      String methodConfig = classConfig.methodConfigs.get(name);
+      if (methodConfig == null)
+      {
+        if (signatureKey == null)
+          signatureKey = getSignatureKey(method);
+        methodConfig = classConfig.methodConfigs.get(signatureKey);
       }
-      if (!cls.hasSuperclass())
-        return null;
-      cls = cls.getSuperclass();
+      if (methodConfig == null)
+        methodConfig = classConfig.methodConfigs.get("*");
+
+      if (methodConfig != null)
+        return methodConfig;
     }
+    return null;
   }
 }
@@ -6,18 +6,22 @@
 
 package info.palant.apkInstrumentation;
 
-import java.util.Map;
+import java.util.List;
 import java.util.Properties;
 import java.util.stream.Collectors;
 
 import soot.Body;
-import soot.BodyTransformer;
 import soot.Value;
+import soot.jimple.IntConstant;
 
-public class MethodLogger extends BodyTransformer
+public class MethodLogger extends UnitTransformer
 {
   private String tag;
   private MethodConfig methodConfig;
+  private String sinkClass;
+  private boolean siteIds;
+  private int sampleRate;
+  private int maxPerSecond;
 
   public MethodLogger(Properties config)
   {
@@ -26,22 +30,38 @@ public class MethodLogger extends BodyTransformer
       this.tag = "MethodLogger";
 
     this.methodConfig = new MethodConfig(config, "MethodLogger.");
+    this.sinkClass = LogSinkInjector.getSink(config, "MethodLogger");
+    this.siteIds = CallSites.isEnabled(config);
+    this.sampleRate = LogSinkInjector.getSampleRate(config, "MethodLogger");
+    this.maxPerSecond = LogSinkInjector.getMaxPerSecond(config, "MethodLogger");
   }
 
+  // Logging code is inserted before the units are visited, so that other
+  // components see it.
   @Override
-  protected void internalTransform(Body body, String phaseName, Map<String, String> options)
+  protected Visitor begin(Body body)
   {
     String formatString = this.methodConfig.get(body.getMethod());
     if (formatString == null)
-      return;
+      return null;
 
     UnitSequence units = new UnitSequence(body);
-    units.log(this.tag, units.extendedFormat(
-      formatString,
-      null,
-      body.getMethod().isStatic() ? null : body.getThisLocal(),
-      body.getParameterLocals().stream().map(local -> (Value)local).collect(Collectors.toList())
-    ));
+    Value thisRef = body.getMethod().isStatic() ? null : body.getThisLocal();
+    List<Value> args = body.getParameterLocals().stream().map(local -> (Value)local).collect(Collectors.toList());
+
+    // Limiting needs a call-site ID as well, even if these aren't logged
+    boolean limited = (this.sampleRate > 1 || this.maxPerSecond > 0);
+    if (limited)
+      formatString += LogSinkInjector.SKIPPED_SUFFIX;
+    IntConstant site = null;
+    if (this.siteIds || limited)
+      site = CallSites.v().add("MethodLogger", body, null, null, formatString);
+
+    Value skipped = (limited ? units.limit(site, this.sampleRate, this.maxPerSecond) : null);
+    units.log(this.tag, this.siteIds ? site : null, formatString, null, thisRef, args, skipped, this.sinkClass);
     units.insertBefore();
+    body.validate();
+    ModifiedTag.mark(body.getMethod().getDeclaringClass());
+    return null;
   }
 }
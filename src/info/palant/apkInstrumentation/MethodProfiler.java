@@ -0,0 +1,200 @@
+/*
+ * This Source Code is subject to the terms of the Mozilla Public License
+ * version 2.0 (the "License"). You can obtain a copy of the License at
+ * http://mozilla.org/MPL/2.0/.
+ */
+
+package info.palant.apkInstrumentation;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import soot.Body;
+import soot.Local;
+import soot.LongType;
+import soot.RefType;
+import soot.Scene;
+import soot.SceneTransformer;
+import soot.SootClass;
+import soot.SootMethod;
+import soot.Unit;
+import soot.UnitPatchingChain;
+import soot.jimple.IntConstant;
+import soot.jimple.InvokeStmt;
+import soot.jimple.Jimple;
+import soot.jimple.JimpleBody;
+import soot.jimple.ReturnStmt;
+import soot.jimple.ReturnVoidStmt;
+import soot.jimple.SpecialInvokeExpr;
+import soot.jimple.StringConstant;
+
+public class MethodProfiler extends UnitTransformer
+{
+  final static String PROFILER_CLASS = "info.palant.apkInstrumentation.Profiler";
+  private final MethodConfig filter;
+  private final MethodConfig dumpAt;
+
+  public MethodProfiler(Properties config)
+  {
+    String filterSpec = config.getProperty("MethodProfiler.filter");
+    if (filterSpec != null)
+      this.filter = new MethodConfig(filterSpec, "");
+    else
+      this.filter = null;
+
+    String dumpSpec = config.getProperty("MethodProfiler.dumpAt");
+    if (dumpSpec != null)
+      this.dumpAt = new MethodConfig(dumpSpec, "");
+    else
+      this.dumpAt = null;
+  }
+
+  // Profiler class has to be added to each scene before any bodies are
+  // transformed.
+  public static class Injector extends SceneTransformer
+  {
+    private final String tag;
+    private final int interval;
+    private final boolean logToFile;
+
+    public Injector(Properties config)
+    {
+      this.tag = config.getProperty("MethodProfiler.tag", "MethodProfiler");
+      this.interval = Integer.parseInt(config.getProperty("MethodProfiler.interval", "10"));
+      if (this.interval < 0)
+        throw new RuntimeException("MethodProfiler.interval option cannot be negative");
+      this.logToFile = LogSinkInjector.FILE_CLASS.equals(LogSinkInjector.getSink(config, "MethodProfiler"));
+    }
+
+    @Override
+    protected void internalTransform(String phaseName, Map<String, String> options)
+    {
+      ClassInjector.injectClass(PROFILER_CLASS);
+      ClassInjector.setStaticField(PROFILER_CLASS, "tag", StringConstant.v(this.tag));
+      ClassInjector.setStaticField(PROFILER_CLASS, "interval", IntConstant.v(this.interval));
+      if (this.logToFile)
+        ClassInjector.setStaticField(PROFILER_CLASS, "logToFile", IntConstant.v(1));
+    }
+  }
+
+  // Method IDs are only known after all bodies have been transformed, the
+  // profiler gets the names of all methods with their IDs then.
+  public static void setMethodNames(CallSites sites)
+  {
+    SootClass cls = Scene.v().getSootClassUnsafe(PROFILER_CLASS, false);
+    if (cls == null || !cls.isApplicationClass())
+      return;
+
+    String[] names = sites.getNames("MethodProfiler");
+    ClassInjector.setStaticField(PROFILER_CLASS, "methodNames", StringConstant.v(String.join("\n", names)));
+  }
+
+  // Profiling code is added after all other components are done with the
+  // body, so that their code is measured as well.
+  @Override
+  protected Visitor begin(Body body)
+  {
+    // Never profile the injected classes, profiler calls would recurse
+    if (ClassInjector.isInjected(body.getMethod().getDeclaringClass()))
+      return null;
+
+    return new Visitor()
+    {
+      @Override
+      public void finish()
+      {
+        MethodProfiler.this.profile(body);
+      }
+    };
+  }
+
+  private void profile(Body body)
+  {
+    SootMethod method = body.getMethod();
+    boolean modified = false;
+    if (this.filter == null || this.filter.get(method) != null)
+    {
+      this.wrap(body);
+      modified = true;
+    }
+
+    // Dump goes before the profiling code, so that it isn't counted
+    if (this.dumpAt != null && this.dumpAt.get(method) != null)
+    {
+      UnitSequence units = new UnitSequence(body);
+      units.call(RefType.v(PROFILER_CLASS), "dump");
+      units.insertBefore();
+      modified = true;
+    }
+
+    if (modified)
+    {
+      body.validate();
+      ModifiedTag.mark(method.getDeclaringClass());
+    }
+  }
+
+  private void wrap(Body body)
+  {
+    UnitPatchingChain chain = body.getUnits();
+    IntConstant id = CallSites.v().add("MethodProfiler", body, null, null, "");
+    RefType profiler = RefType.v(PROFILER_CLASS);
+
+    // Jumps to the first statement are loops, these shouldn't restart timing.
+    // Calling a static method before super() is fine in constructors.
+    UnitSequence entry = new UnitSequence(body);
+    Local start = entry.call(RefType.v("java.lang.System"), "nanoTime", LongType.v());
+    Unit first = ((JimpleBody)body).getFirstNonIdentityStmt();
+    for (Unit unit: entry)
+      chain.insertBeforeNoRedirect(unit, first);
+
+    // Normal exits, returns are collected first as these cannot be modified
+    // while iterating.
+    List<Unit> returns = new ArrayList<Unit>();
+    for (Unit unit: chain)
+      if (unit instanceof ReturnStmt || unit instanceof ReturnVoidStmt)
+        returns.add(unit);
+    for (Unit unit: returns)
+    {
+      UnitSequence exit = new UnitSequence(body);
+      exit.call(profiler, "exit", id, start);
+      exit.insertBefore(unit);
+    }
+
+    // Exceptional exits go through a catch-all handler added after all other
+    // traps, it records the duration and throws the exception again.
+    Unit begin = first;
+    if (body.getMethod().getName().equals("<init>"))
+    {
+      // Code before the super() call cannot be covered by an exception
+      // handler, the object isn't initialized yet.
+      for (Iterator<Unit> it = chain.iterator(begin); it.hasNext();)
+      {
+        Unit unit = it.next();
+        if (unit instanceof InvokeStmt && ((InvokeStmt)unit).getInvokeExpr() instanceof SpecialInvokeExpr)
+        {
+          SpecialInvokeExpr expr = (SpecialInvokeExpr)((InvokeStmt)unit).getInvokeExpr();
+          if (expr.getBase() == body.getThisLocal() && expr.getMethodRef().getName().equals("<init>"))
+          {
+            begin = chain.getSuccOf(unit);
+            break;
+          }
+        }
+      }
+    }
+
+    UnitSequence handler = new UnitSequence(body);
+    Local exception = handler.newLocal(RefType.v("java.lang.Throwable"));
+    handler.add(Jimple.v().newIdentityStmt(exception, Jimple.v().newCaughtExceptionRef()));
+    handler.call(profiler, "exit", id, start);
+    handler.add(Jimple.v().newThrowStmt(exception));
+    handler.insertAfter(chain.getLast());
+
+    body.getTraps().addLast(Jimple.v().newTrap(
+      Scene.v().getSootClass("java.lang.Throwable"), begin, handler.get(0), handler.get(0)
+    ));
+  }
+}
@@ -0,0 +1,40 @@
+/*
+ * This Source Code is subject to the terms of the Mozilla Public License
+ * version 2.0 (the "License"). You can obtain a copy of the License at
+ * http://mozilla.org/MPL/2.0/.
+ */
+
+package info.palant.apkInstrumentation;
+
+import soot.SootClass;
+import soot.tagkit.Tag;
+
+public class ModifiedTag implements Tag
+{
+  final static String NAME = "info.palant.apkInstrumentation.Modified";
+
+  // All methods of a class are transformed on the same thread, so it is safe
+  // to tag the class from a body transformer.
+  public static void mark(SootClass cls)
+  {
+    if (!cls.hasTag(NAME))
+      cls.addTag(new ModifiedTag());
+  }
+
+  public static boolean isModified(SootClass cls)
+  {
+    return cls.hasTag(NAME);
+  }
+
+  @Override
+  public String getName()
+  {
+    return NAME;
+  }
+
+  @Override
+  public byte[] getValue()
+  {
+    return new byte[0];
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * This Source Code is subject to the terms of the Mozilla Public License
+ * version 2.0 (the "License"). You can obtain a copy of the License at
+ * http://mozilla.org/MPL/2.0/.
+ */
+
+package info.palant.apkInstrumentation;
+
+import java.util.Arrays;
+
+public class Profiler implements Runnable
+{
+  // These values are replaced in the static initializer during injection.
+  // Method names are separated by newlines, the line number is method ID.
+  static String methodNames = "";
+  static String tag = "MethodProfiler";
+  static int interval = 10;
+  static boolean logToFile = false;
+
+  // Durations are counted in buckets by powers of two: bucket N counts
+  // durations of at least 2^N nanoseconds. The last bucket is 2^39 ns, around
+  // nine minutes.
+  private static final int BUCKETS = 40;
+
+  // Methods share a lock if their IDs are equal modulo stripe count, so that
+  // threads rarely contend for a lock.
+  private static final int STRIPES = 64;
+
+  private static final String[] names = methodNames.split("\n", -1);
+  private static final Object[] locks = new Object[STRIPES];
+  private static final long[] counts = new long[names.length * BUCKETS];
+  private static final long[] totals = new long[names.length];
+  private static final long[] maxima = new long[names.length];
+  private static long lastDump = System.nanoTime();
+
+  static
+  {
+    for (int i = 0; i < STRIPES; i++)
+      locks[i] = new Object();
+
+    if (interval > 0)
+    {
+      Thread thread = new Thread(new Profiler(), "Profiler");
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  // Upper bound of the duration for the given share of calls
+  private static long percentile(long[] counts, int offset, long calls, long max, int percent)
+  {
+    long threshold = (calls * percent + 99) / 100;
+    long seen = 0;
+    for (int i = 0; i < BUCKETS - 1; i++)
+    {
+      seen += counts[offset + i];
+      if (seen >= threshold)
+        return Math.min(1L << (i + 1), max);
+    }
+    return max;
+  }
+
+  public static void exit(int method, long start)
+  {
+    long duration = System.nanoTime() - start;
+    int bucket = Math.min(63 - Long.numberOfLeadingZeros(Math.max(duration, 1)), BUCKETS - 1);
+    synchronized (locks[method & (STRIPES - 1)])
+    {
+      counts[method * BUCKETS + bucket]++;
+      totals[method] += duration;
+      if (duration > maxima[method])
+        maxima[method] = duration;
+    }
+  }
+
+  private static String formatDuration(long nanos)
+  {
+    if (nanos < 10000L)
+      return nanos + " ns";
+    else if (nanos < 10000000L)
+      return (nanos / 1000) + " us";
+    else
+      return (nanos / 1000000) + " ms";
+  }
+
+  private static void log(String message)
+  {
+    if (logToFile)
+      LogFile.log(tag, message);
+    else
+      LogSink.log(tag, message);
+  }
+
+  // Logs statistics collected since the previous dump, methods taking most
+  // time in total come first.
+  public static synchronized void dump()
+  {
+    // Copy and reset statistics one stripe at a time. Injected classes cannot
+    // have nested classes, so the copies are kept in arrays as well.
+    long[] copyCounts = new long[counts.length];
+    long[] copyTotals = new long[totals.length];
+    long[] copyMaxima = new long[maxima.length];
+    long[] calls = new long[names.length];
+    int[] methods = new int[names.length];
+    int found = 0;
+    for (int stripe = 0; stripe < STRIPES; stripe++)
+    {
+      synchronized (locks[stripe])
+      {
+        for (int method = stripe; method < names.length; method += STRIPES)
+        {
+          for (int i = method * BUCKETS; i < (method + 1) * BUCKETS; i++)
+          {
+            copyCounts[i] = counts[i];
+            calls[method] += counts[i];
+            counts[i] = 0;
+          }
+          if (calls[method] == 0)
+            continue;
+
+          copyTotals[method] = totals[method];
+          copyMaxima[method] = maxima[method];
+          totals[method] = 0;
+          maxima[method] = 0;
+          methods[found++] = method;
+        }
+      }
+    }
+
+    long now = System.nanoTime();
+    long elapsed = now - lastDump;
+    lastDump = now;
+    if (found == 0)
+      return;
+
+    // Without a filter all methods are profiled, the list can be long
+    sortByValue(methods, found, copyTotals);
+
+    log("Profile of " + found + " methods over " + formatDuration(elapsed) + ":");
+    for (int i = 0; i < found; i++)
+    {
+      int method = methods[i];
+      int offset = method * BUCKETS;
+      long max = copyMaxima[method];
+      log(names[method] + ": " + calls[method] + " calls, total " + formatDuration(copyTotals[method]) +
+          ", average " + formatDuration(copyTotals[method] / calls[method]) +
+          ", p50 <= " + formatDuration(percentile(copyCounts, offset, calls[method], max, 50)) +
+          ", p90 <= " + formatDuration(percentile(copyCounts, offset, calls[method], max, 90)) +
+          ", p99 <= " + formatDuration(percentile(copyCounts, offset, calls[method], max, 99)) +
+          ", max " + formatDuration(max));
+    }
+  }
+
+  // Orders indexes by their values, largest first. Values are packed together
+  // with indexes so that no comparator class is needed for sorting.
+  private static void sortByValue(int[] indexes, int count, long[] values)
+  {
+    int bits = 32 - Integer.numberOfLeadingZeros(values.length);
+    long mask = (1L << bits) - 1;
+    long maxValue = Long.MAX_VALUE >> bits;
+    long[] keys = new long[count];
+    for (int i = 0; i < count; i++)
+      keys[i] = (Math.min(values[indexes[i]], maxValue) << bits) | (mask - indexes[i]);
+    Arrays.sort(keys);
+    for (int i = 0; i < count; i++)
+      indexes[i] = (int)(mask - (keys[count - 1 - i] & mask));
+  }
+
+  @Override
+  public void run()
+  {
+    while (true)
+    {
+      try
+      {
+        Thread.sleep(interval * 1000L);
+      }
+      catch (InterruptedException e)
+      {
+        return;
+      }
+      dump();
+    }
+  }
+}
@@ -0,0 +1,316 @@
+/*
+ * This Source Code is subject to the terms of the Mozilla Public License
+ * version 2.0 (the "License"). You can obtain a copy of the License at
+ * http://mozilla.org/MPL/2.0/.
+ */
+
+package info.palant.apkInstrumentation;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+
+import soot.Scene;
+import soot.toDex.DexPrinter;
+import soot.toDex.MultiDexBuilder;
+
+public class RewriteCache
+{
+  // Options that don't influence how classes are rewritten
+  final static Set<String> IGNORED_OPTIONS = new HashSet<String>(Arrays.asList(
+    "input", "output", "decompileDir", "decompileFilter", "indexFile", "keystore", "keypass", "v1Signing",
+    "threads", "batchSlots", "cacheDir", "dexSpillSize"
+  ));
+
+  private final File directory;
+  private final byte[] configHash;
+  private final AtomicInteger hits = new AtomicInteger();
+  private final AtomicInteger misses = new AtomicInteger();
+
+  public static class Entry
+  {
+    final String className;
+    final String key;
+    final Opcodes opcodes;
+    final ClassDef original;
+    ClassDef rewritten = null;
+    boolean hit = false;
+
+    Entry(String className, String key, Opcodes opcodes, ClassDef original)
+    {
+      this.className = className;
+      this.key = key;
+      this.opcodes = opcodes;
+      this.original = original;
+    }
+
+    public String getClassName()
+    {
+      return this.className;
+    }
+
+    public boolean isHit()
+    {
+      return this.hit;
+    }
+
+    // Class as it should be written to the output, for cache hits only
+    public ClassDef getClassDef()
+    {
+      return this.rewritten != null ? this.rewritten : this.original;
+    }
+
+    public boolean isModified()
+    {
+      return this.rewritten != null;
+    }
+  }
+
+  // DexPrinter that can also take classes which didn't go through Soot and
+  // produces dex files in memory
+  public static class Printer extends DexPrinter
+  {
+    private static class Builder extends MultiDexBuilder
+    {
+      Builder(Opcodes opcodes)
+      {
+        super(opcodes);
+      }
+
+      List<DexPool> getPools()
+      {
+        return this.dexPools;
+      }
+    }
+
+    // Soot would use the API version from the manifest with APK input, keep
+    // producing dex files for the configured platform version.
+    @Override
+    protected MultiDexBuilder createDexBuilder()
+    {
+      return new Builder(Opcodes.forApi(Scene.v().getAndroidAPIVersion()));
+    }
+
+    public void addClassDef(ClassDef cls)
+    {
+      this.dexBuilder.internClass(cls);
+    }
+
+    // The builder splits up the output into multiple dex files if it doesn't
+    // fit into a single one. If a directory is given, these are written to
+    // classes.dex, classes2.dex etc. in it.
+    public List<DexOutput> write(File directory, int sizeHint) throws IOException
+    {
+      List<DexOutput> result = new ArrayList<DexOutput>();
+      for (DexPool pool: ((Builder)this.dexBuilder).getPools())
+      {
+        File file = null;
+        if (directory != null)
+          file = new File(directory, "classes" + (result.isEmpty() ? "" : result.size() + 1) + ".dex");
+        result.add(DexOutput.write(pool, file, sizeHint));
+      }
+      return result;
+    }
+  }
+
+  public RewriteCache(String directory, Properties config, String toolPath) throws IOException
+  {
+    this.directory = new File(directory);
+    this.directory.mkdirs();
+
+    // Cached classes are only valid for the same configuration and the same
+    // build of this tool, including Soot.
+    MessageDigest digest = getDigest();
+    for (String property: new TreeSet<String>(config.stringPropertyNames()))
+    {
+      if (IGNORED_OPTIONS.contains(property))
+        continue;
+      digest.update((property + "=" + config.getProperty(property) + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    String replacedClasses = config.getProperty("ClassReplacer.classes");
+    if (replacedClasses != null)
+    {
+      StringTokenizer tokenizer = new StringTokenizer(replacedClasses);
+      while (tokenizer.hasMoreTokens())
+        digest.update(Files.readAllBytes(new File(tokenizer.nextToken()).toPath()));
+    }
+
+    digest.update(Files.readAllBytes(new File(toolPath).toPath()));
+    this.configHash = digest.digest();
+  }
+
+  private static MessageDigest getDigest()
+  {
+    try
+    {
+      return MessageDigest.getInstance("SHA-256");
+    }
+    catch (NoSuchAlgorithmException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static byte[] serialize(ClassDef cls, Opcodes opcodes) throws IOException
+  {
+    DexPool pool = new DexPool(opcodes);
+    pool.internClass(cls);
+    MemoryDataStore store = new MemoryDataStore();
+    pool.writeTo(store);
+    return store.getData();
+  }
+
+  static String getClassName(ClassDef cls)
+  {
+    String type = cls.getType();
+    return type.substring(1, type.length() - 1).replace('/', '.');
+  }
+
+  private File getFile(String key)
+  {
+    return new File(new File(this.directory, key.substring(0, 2)), key);
+  }
+
+  private Entry lookup(ClassDef cls, Opcodes opcodes, byte[] prefix) throws IOException
+  {
+    MessageDigest digest = getDigest();
+    digest.update(prefix);
+    digest.update(serialize(cls, opcodes));
+
+    StringBuilder key = new StringBuilder();
+    for (byte b: digest.digest())
+      key.append(String.format("%02x", b));
+
+    Entry entry = new Entry(getClassName(cls), key.toString(), opcodes, cls);
+    File file = this.getFile(entry.key);
+    if (file.isFile())
+    {
+      // Empty file means that the class wasn't changed
+      byte[] data = Files.readAllBytes(file.toPath());
+      if (data.length > 0)
+        entry.rewritten = new DexBackedDexFile(opcodes, data).getClasses().iterator().next();
+      entry.hit = true;
+      this.hits.incrementAndGet();
+    }
+    else
+      this.misses.incrementAndGet();
+    return entry;
+  }
+
+  public Map<String,Entry> lookup(Collection<DexBackedDexFile> dexFiles, int threads) throws IOException
+  {
+    // Classes are looked up in the order of the dex files, later duplicates
+    // are ignored like they are by Android.
+    byte[] prefix = new byte[this.configHash.length + 4];
+    System.arraycopy(this.configHash, 0, prefix, 0, this.configHash.length);
+    int apiVersion = Scene.v().getAndroidAPIVersion();
+    for (int i = 0; i < 4; i++)
+      prefix[this.configHash.length + i] = (byte)(apiVersion >> (i * 8));
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try
+    {
+      Set<String> seen = new HashSet<String>();
+      List<Future<Entry>> results = new ArrayList<Future<Entry>>();
+      for (DexBackedDexFile dex: dexFiles)
+      {
+        for (ClassDef cls: dex.getClasses())
+          if (seen.add(cls.getType()))
+            results.add(executor.submit(() -> this.lookup(cls, dex.getOpcodes(), prefix)));
+      }
+
+      Map<String,Entry> result = new LinkedHashMap<String,Entry>();
+      for (Future<Entry> future: results)
+      {
+        Entry entry = future.get();
+        result.put(entry.className, entry);
+      }
+      return result;
+    }
+    catch (InterruptedException e)
+    {
+      throw new RuntimeException("Interrupted while looking up classes in rewrite cache", e);
+    }
+    catch (ExecutionException e)
+    {
+      throw new RuntimeException("Looking up classes in rewrite cache failed", e.getCause());
+    }
+    finally
+    {
+      executor.shutdownNow();
+    }
+  }
+
+  public void store(Entry entry, ClassDef rewritten) throws IOException
+  {
+    byte[] data = (rewritten != null ? serialize(rewritten, entry.opcodes) : new byte[0]);
+
+    // Write to a temporary file first, parallel runs might store the same class
+    File file = this.getFile(entry.key);
+    file.getParentFile().mkdirs();
+    File tempFile = File.createTempFile(entry.key, null, file.getParentFile());
+    Files.write(tempFile.toPath(), data);
+    Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  public void storeAll(Map<String,Entry> entries, Collection<DexOutput> outputs, Set<String> modifiedClasses) throws IOException
+  {
+    Map<String,ClassDef> rewritten = new LinkedHashMap<String,ClassDef>();
+    for (DexOutput output: outputs)
+      for (ClassDef cls: output.load().getClasses())
+        rewritten.put(getClassName(cls), cls);
+
+    for (Entry entry: entries.values())
+    {
+      if (entry.hit)
+        continue;
+
+      if (modifiedClasses.contains(entry.className))
+      {
+        ClassDef cls = rewritten.get(entry.className);
+        if (cls == null)
+          throw new RuntimeException("Rewritten class " + entry.className + " is missing from output");
+        this.store(entry, cls);
+      }
+      else
+        this.store(entry, null);
+    }
+  }
+
+  public int getHits()
+  {
+    return this.hits.get();
+  }
+
+  public int getMisses()
+  {
+    return this.misses.get();
+  }
+}
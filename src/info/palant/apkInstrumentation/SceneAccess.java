@@ -0,0 +1,123 @@
+/*
+ * This Source Code is subject to the terms of the Mozilla Public License
+ * version 2.0 (the "License"). You can obtain a copy of the License at
+ * http://mozilla.org/MPL/2.0/.
+ */
+
+package info.palant.apkInstrumentation;
+
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import soot.RefType;
+import soot.Scene;
+import soot.SootMethod;
+import soot.SootMethodRef;
+import soot.Type;
+
+public abstract class SceneAccess
+{
+  // Method bodies are transformed concurrently. Resolving classes or phantom
+  // methods modifies the Scene however, this isn't thread-safe. Batch slots
+  // have separate Scenes, these don't need to wait for each other.
+  private static final Map<Scene,ReentrantReadWriteLock> locks = new WeakHashMap<Scene,ReentrantReadWriteLock>();
+
+  private static ReentrantReadWriteLock getLock()
+  {
+    synchronized (locks)
+    {
+      ReentrantReadWriteLock result = locks.get(Scene.v());
+      if (result == null)
+      {
+        result = new ReentrantReadWriteLock();
+        locks.put(Scene.v(), result);
+      }
+      return result;
+    }
+  }
+
+  public static SootMethod resolve(SootMethodRef ref)
+  {
+    ReentrantReadWriteLock lock = getLock();
+    lock.readLock().lock();
+    try
+    {
+      SootMethod method = ref.tryResolve();
+      if (method != null)
+        return method;
+    }
+    finally
+    {
+      lock.readLock().unlock();
+    }
+
+    // Method isn't known, resolving will create a phantom method
+    lock.writeLock().lock();
+    try
+    {
+      return ref.resolve();
+    }
+    finally
+    {
+      lock.writeLock().unlock();
+    }
+  }
+
+  // Injected calls mostly go to methods of classes that are already known,
+  // these are looked up concurrently. Only a miss might modify the Scene.
+  public static SootMethod getMethod(RefType type, String name, List<Type> parameterTypes)
+  {
+    ReentrantReadWriteLock lock = getLock();
+    lock.readLock().lock();
+    try
+    {
+      if (type.hasSootClass() && type.getSootClass().declaresMethod(name, parameterTypes))
+        return type.getSootClass().getMethod(name, parameterTypes);
+    }
+    finally
+    {
+      lock.readLock().unlock();
+    }
+
+    lock.writeLock().lock();
+    try
+    {
+      return type.getSootClass().getMethod(name, parameterTypes);
+    }
+    finally
+    {
+      lock.writeLock().unlock();
+    }
+  }
+
+  public static SootMethod getMethod(RefType type, String name, List<Type> parameterTypes, Type returnType)
+  {
+    ReentrantReadWriteLock lock = getLock();
+    lock.readLock().lock();
+    try
+    {
+      if (type.hasSootClass())
+      {
+        SootMethod method = type.getSootClass().getMethodUnsafe(name, parameterTypes, returnType);
+        if (method != null)
+          return method;
+      }
+    }
+    finally
+    {
+      lock.readLock().unlock();
+    }
+
+    lock.writeLock().lock();
+    try
+    {
+      return type.getSootClass().getMethod(name, parameterTypes, returnType);
+    }
+    finally
+    {
+      lock.writeLock().unlock();
+    }
+  }
+}
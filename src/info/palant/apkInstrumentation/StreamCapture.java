@@ -0,0 +1,132 @@
+/*
+ * This Source Code is subject to the terms of the Mozilla Public License
+ * version 2.0 (the "License"). You can obtain a copy of the License at
+ * http://mozilla.org/MPL/2.0/.
+ */
+
+package info.palant.apkInstrumentation;
+
+import java.lang.ref.WeakReference;
+
+public class StreamCapture
+{
+  static final int MODE_ALL = 0;
+  static final int MODE_HEAD = 1;
+  static final int MODE_TAIL = 2;
+  static final int MODE_HEAD_TAIL = 3;
+  static final int MODE_SUMMARY = 4;
+
+  // These values are replaced in the static initializer during injection
+  static int mode = MODE_ALL;
+  static int maxBytes = 0;
+  static int coalesceBytes = 1024;
+  static int coalesceTime = 100;
+
+  // Stream that the current thread collected single bytes for most recently
+  private static final ThreadLocal<WeakReference<Object>> current = new ThreadLocal<WeakReference<Object>>();
+
+  private final long start = System.nanoTime();
+  private long total = 0;
+  private long logged = 0;
+
+  // Ring buffer holding the last bytes seen, only allocated in tail modes
+  private byte[] tail = null;
+  private int tailPos = 0;
+  private int tailLength = 0;
+
+  // Data should be logged in the order it passed through the streams of a
+  // thread. Pending bytes of the stream used previously are logged before
+  // anything is logged for another stream.
+  static void activate(Object stream)
+  {
+    WeakReference<Object> reference = current.get();
+    Object previous = (reference != null ? reference.get() : null);
+    if (previous == stream)
+      return;
+
+    current.set(new WeakReference<Object>(stream));
+    if (previous instanceof LoggingInputStream)
+      ((LoggingInputStream)previous).flushPending(Thread.currentThread());
+    else if (previous instanceof LoggingOutputStream)
+      ((LoggingOutputStream)previous).flushPending(Thread.currentThread());
+  }
+
+  // Returns null if all data should be logged as it passes through
+  public static StreamCapture create()
+  {
+    return (mode == MODE_ALL ? null : new StreamCapture());
+  }
+
+  // Counts data without looking at it, used in summary mode
+  public void count(int len)
+  {
+    this.total += len;
+  }
+
+  // Counts data passing through the stream, returns the number of bytes at
+  // the start of the data that should be logged right away.
+  public int add(byte[] data, int off, int len)
+  {
+    long previous = this.total;
+    this.count(len);
+    if (mode == MODE_SUMMARY)
+      return 0;
+
+    int head = 0;
+    if ((mode == MODE_HEAD || mode == MODE_HEAD_TAIL) && previous < maxBytes)
+      head = (int)Math.min(len, maxBytes - previous);
+    this.logged += head;
+
+    if ((mode == MODE_TAIL || mode == MODE_HEAD_TAIL) && len > head)
+      this.keep(data, off + head, len - head);
+    return head;
+  }
+
+  private void keep(byte[] data, int off, int len)
+  {
+    if (this.tail == null)
+      this.tail = new byte[maxBytes];
+
+    // Only the last maxBytes bytes can end up in the log
+    if (len > maxBytes)
+    {
+      off += len - maxBytes;
+      len = maxBytes;
+    }
+
+    int first = Math.min(len, maxBytes - this.tailPos);
+    System.arraycopy(data, off, this.tail, this.tailPos, first);
+    System.arraycopy(data, off + first, this.tail, 0, len - first);
+    this.tailPos = (this.tailPos + len) % maxBytes;
+    this.tailLength = Math.min(this.tailLength + len, maxBytes);
+  }
+
+  // Returns the data to be logged when the stream is closed, in order
+  public byte[] takeTail()
+  {
+    byte[] result = new byte[this.tailLength];
+    if (this.tailLength == 0)
+      return result;
+
+    int start = (this.tailPos - this.tailLength + maxBytes) % maxBytes;
+    int first = Math.min(this.tailLength, maxBytes - start);
+    System.arraycopy(this.tail, start, result, 0, first);
+    System.arraycopy(this.tail, 0, result, first, this.tailLength - first);
+    this.logged += this.tailLength;
+    this.tailLength = 0;
+    return result;
+  }
+
+  public String getSummary(String action)
+  {
+    long duration = System.nanoTime() - this.start;
+    StringBuilder result = new StringBuilder();
+    result.append("closed after ").append(action).append(' ').append(this.total).append(" bytes in ");
+    result.append(duration / 1000000).append(" ms");
+    if (duration > 0)
+      result.append(" (").append((long)(this.total * 1e9 / duration / 1024)).append(" KiB/s)");
+    if (mode != MODE_SUMMARY && this.total > this.logged)
+      result.append(", ").append(this.total - this.logged).append(" bytes not logged");
+    return result.toString();
+  }
+}
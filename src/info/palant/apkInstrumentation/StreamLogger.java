@@ -6,6 +6,7 @@
 
 package info.palant.apkInstrumentation;
 
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Properties;
 
@@ -13,16 +14,19 @@ import soot.Body;
 import soot.SootMethod;
 import soot.Unit;
 import soot.Value;
-import soot.BodyTransformer;
+import soot.SceneTransformer;
+import soot.jimple.IntConstant;
 import soot.jimple.StringConstant;
 
-public class StreamLogger extends BodyTransformer
+public class StreamLogger extends UnitTransformer
 {
   final static String OUTPUT_STREAM_CLASS = "info.palant.apkInstrumentation.LoggingOutputStream";
   final static String INPUT_STREAM_CLASS = "info.palant.apkInstrumentation.LoggingInputStream";
+  final static String CAPTURE_CLASS = "info.palant.apkInstrumentation.StreamCapture";
   private final MethodConfig filter;
   private String tag;
   private MethodConfig methodConfig;
+  private boolean siteIds;
 
   public StreamLogger(Properties config)
   {
@@ -37,47 +41,137 @@ public class StreamLogger extends BodyTransformer
       this.tag = "StreamLogger";
 
     this.methodConfig = new MethodConfig(config, "StreamLogger.");
+    this.siteIds = CallSites.isEnabled(config);
+  }
+
+  // Logging stream classes have to be added to each scene before any bodies
+  // are transformed.
+  public static class Injector extends SceneTransformer
+  {
+    private final boolean logToFile;
+    private final int captureMode;
+    private final int maxBytes;
+    private final int coalesceBytes;
+    private final int coalesceTime;
+
+    public Injector(Properties config)
+    {
+      this.logToFile = LogSinkInjector.FILE_CLASS.equals(LogSinkInjector.getSink(config, "StreamLogger"));
+
+      this.maxBytes = Integer.parseInt(config.getProperty("StreamLogger.maxBytes", "0"));
+      if (this.maxBytes < 0)
+        throw new RuntimeException("StreamLogger.maxBytes option cannot be negative");
+
+      String capture = config.getProperty("StreamLogger.capture", this.maxBytes > 0 ? "head" : "all");
+      if (capture.equals("all"))
+        this.captureMode = StreamCapture.MODE_ALL;
+      else if (capture.equals("head"))
+        this.captureMode = StreamCapture.MODE_HEAD;
+      else if (capture.equals("tail"))
+        this.captureMode = StreamCapture.MODE_TAIL;
+      else if (capture.equals("headtail"))
+        this.captureMode = StreamCapture.MODE_HEAD_TAIL;
+      else if (capture.equals("summary"))
+        this.captureMode = StreamCapture.MODE_SUMMARY;
+      else
+        throw new RuntimeException("Unsupported value for StreamLogger.capture option: " + capture);
+
+      if (this.maxBytes == 0 && this.captureMode != StreamCapture.MODE_ALL && this.captureMode != StreamCapture.MODE_SUMMARY)
+        throw new RuntimeException("StreamLogger.maxBytes option is required with StreamLogger.capture=" + capture);
+
+      this.coalesceBytes = Integer.parseInt(config.getProperty("StreamLogger.coalesceBytes", "1024"));
+      this.coalesceTime = Integer.parseInt(config.getProperty("StreamLogger.coalesceTime", "100"));
+      if (this.coalesceBytes < 0 || this.coalesceTime < 0)
+        throw new RuntimeException("StreamLogger.coalesceBytes and StreamLogger.coalesceTime options cannot be negative");
+    }
 
-    ClassInjector.injectClass(OUTPUT_STREAM_CLASS);
-    ClassInjector.injectClass(INPUT_STREAM_CLASS);
+    @Override
+    protected void internalTransform(String phaseName, Map<String, String> options)
+    {
+      ClassInjector.injectClass(OUTPUT_STREAM_CLASS);
+      ClassInjector.injectClass(INPUT_STREAM_CLASS);
+      ClassInjector.injectClass(CAPTURE_CLASS);
+      ClassInjector.setStaticField(CAPTURE_CLASS, "mode", IntConstant.v(this.captureMode));
+      ClassInjector.setStaticField(CAPTURE_CLASS, "maxBytes", IntConstant.v(this.maxBytes));
+      ClassInjector.setStaticField(CAPTURE_CLASS, "coalesceBytes", IntConstant.v(this.coalesceBytes));
+      ClassInjector.setStaticField(CAPTURE_CLASS, "coalesceTime", IntConstant.v(this.coalesceTime));
+      if (this.logToFile)
+      {
+        ClassInjector.setStaticField(OUTPUT_STREAM_CLASS, "logToFile", IntConstant.v(1));
+        ClassInjector.setStaticField(INPUT_STREAM_CLASS, "logToFile", IntConstant.v(1));
+      }
+    }
   }
 
   @Override
-  protected void internalTransform(Body body, String phaseName, Map<String, String> options)
+  protected Visitor begin(Body body)
   {
     if (this.filter != null && this.filter.get(body.getMethod()) == null)
-      return;
+      return null;
 
-    for (Unit unit: body.getUnits().toArray(new Unit[0]))
+    return new Visitor()
     {
-      if (!UnitParser.isAssignment(unit))
-        continue;
-
-      SootMethod method = UnitParser.getInvocationMethod(unit);
-      if (method == null)
-        continue;
-
-      String formatString = this.methodConfig.get(method);
-      if (formatString == null)
-        continue;
-
-      Value result = UnitParser.getAssignmentTarget(unit);
-      String type = result.getType().toString();
-      String cls;
-      if (type.equals("java.io.InputStream"))
-        cls = INPUT_STREAM_CLASS;
-      else if (type.equals("java.io.OutputStream"))
-        cls = OUTPUT_STREAM_CLASS;
-      else
+      private final Map<Unit,SootMethod> calls = new LinkedHashMap<Unit,SootMethod>();
+
+      @Override
+      public boolean visit(Unit unit, SootMethod method)
       {
-        throw new RuntimeException("Method %s called by %s produced result that is neither InputStream nor OutputStream: %s".format(
-          method.getSignature(),
-          body.getMethod().getSignature(),
-          type
-        ));
+        if (method != null && UnitParser.isAssignment(unit) && StreamLogger.this.methodConfig.get(method) != null)
+          this.calls.put(unit, method);
+        return true;
       }
 
-      UnitSequence units = new UnitSequence(body);
+      @Override
+      public void finish()
+      {
+        if (this.calls.isEmpty())
+          return;
+
+        for (Map.Entry<Unit,SootMethod> entry: this.calls.entrySet())
+          StreamLogger.this.wrap(body, entry.getKey(), entry.getValue()).insertAfter(entry.getKey());
+        body.validate();
+        ModifiedTag.mark(body.getMethod().getDeclaringClass());
+      }
+    };
+  }
+
+  private UnitSequence wrap(Body body, Unit unit, SootMethod method)
+  {
+    String formatString = this.methodConfig.get(method);
+    Value result = UnitParser.getAssignmentTarget(unit);
+    String type = result.getType().toString();
+    String cls;
+    if (type.equals("java.io.InputStream"))
+      cls = INPUT_STREAM_CLASS;
+    else if (type.equals("java.io.OutputStream"))
+      cls = OUTPUT_STREAM_CLASS;
+    else
+    {
+      throw new RuntimeException("Method %s called by %s produced result that is neither InputStream nor OutputStream: %s".format(
+        method.getSignature(),
+        body.getMethod().getSignature(),
+        type
+      ));
+    }
+
+    UnitSequence units = new UnitSequence(body);
+    if (this.siteIds)
+    {
+      units.assign(result, units.newObject(
+        cls,
+        result,
+        StringConstant.v(this.tag),
+        units.formatValues(
+          formatString,
+          result,
+          UnitParser.getInvocationBase(unit),
+          UnitParser.getInvocationArgs(unit)
+        ),
+        CallSites.v().add("StreamLogger", body, unit, method.getSignature(), formatString)
+      ));
+    }
+    else
+    {
       units.assign(result, units.newObject(
         cls,
         result,
@@ -89,7 +183,7 @@ public class StreamLogger extends BodyTransformer
           UnitParser.getInvocationArgs(unit)
         )
       ));
-      units.insertAfter(unit);
     }
+    return units;
   }
 }
@@ -57,7 +57,7 @@ public class UnitParser
   {
     InvokeExpr invocation = getInvocation(unit);
     if (invocation != null)
-      return invocation.getMethod();
+      return SceneAccess.resolve(invocation.getMethodRef());
     return null;
   }
 
@@ -7,6 +7,7 @@
 package info.palant.apkInstrumentation;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.regex.Matcher;
@@ -14,12 +15,18 @@ import java.util.regex.Pattern;
 
 import soot.ArrayType;
 import soot.Body;
+import soot.BooleanType;
+import soot.ByteType;
+import soot.CharType;
+import soot.DoubleType;
+import soot.FloatType;
 import soot.IntType;
 import soot.Local;
+import soot.LongType;
 import soot.PrimType;
 import soot.RefType;
 import soot.Scene;
-import soot.SootClass;
+import soot.ShortType;
 import soot.SootMethod;
 import soot.Type;
 import soot.Unit;
@@ -34,7 +41,10 @@ import soot.jimple.StringConstant;
 
 public class UnitSequence extends ArrayList<Unit>
 {
+  final static Pattern PLACEHOLDER = Pattern.compile("\\{(.*?):(%.*?)\\}");
+
   private boolean inserted;
+  private Stmt end = null;
   private Body body;
   private LocalGenerator generator;
 
@@ -56,6 +66,42 @@ public class UnitSequence extends ArrayList<Unit>
     this.call(RefType.v("android.util.Log"), "i", StringConstant.v(tag), message);
   }
 
+  public void log(String tag, Value message, String sinkClass)
+  {
+    // Messages can also go through one of the injected sink classes
+    if (sinkClass != null)
+      this.call(RefType.v(sinkClass), "log", StringConstant.v(tag), message);
+    else
+      this.log(tag, message);
+  }
+
+  public void log(String tag, IntConstant site, String formatString, Value result, Value thisRef, List<Value> argValues, Value skipped, String sinkClass)
+  {
+    // Binary log file has a field for the call-site ID, otherwise it goes
+    // into the message.
+    List<Value> parts = new ArrayList<Value>();
+    if (site != null && !LogSinkInjector.FILE_CLASS.equals(sinkClass))
+      parts.addAll(Arrays.asList(StringConstant.v("#"), site, StringConstant.v("\t")));
+    parts.addAll(this.formatParts(formatString, result, thisRef, argValues, skipped, site != null));
+
+    if (site != null && LogSinkInjector.FILE_CLASS.equals(sinkClass))
+      this.call(RefType.v(sinkClass), "log", StringConstant.v(tag), site, this.concat(parts));
+    else
+      this.log(tag, this.concat(parts), sinkClass);
+  }
+
+  // Calls LogLimiter and skips the remaining units of the sequence if the call
+  // shouldn't be logged. Returns the number of calls skipped previously.
+  public Local limit(IntConstant site, int sampleRate, int maxPerSecond)
+  {
+    Local skipped = this.call(RefType.v(LogSinkInjector.LIMITER_CLASS), "check", IntType.v(),
+        site, IntConstant.v(sampleRate), IntConstant.v(maxPerSecond));
+    if (this.end == null)
+      this.end = Jimple.v().newNopStmt();
+    this.add(Jimple.v().newIfStmt(Jimple.v().newLtExpr(skipped, IntConstant.v(0)), this.end));
+    return skipped;
+  }
+
   public Local stringify(Value value)
   {
     Type type = value.getType();
@@ -65,7 +111,7 @@ public class UnitSequence extends ArrayList<Unit>
       type = RefType.v("java.lang.Object");
 
     return this.call(
-      RefType.v("java.lang.String").getSootClass().getMethod("valueOf", Collections.singletonList(type)),
+      SceneAccess.getMethod(RefType.v("java.lang.String"), "valueOf", Collections.singletonList(type)),
       RefType.v("java.lang.String"),
       value
     );
@@ -97,7 +143,7 @@ public class UnitSequence extends ArrayList<Unit>
       Jimple.v().newInvokeStmt(
         Jimple.v().newSpecialInvokeExpr(
           object,
-          type.getSootClass().getMethod("<init>", toTypes(params)).makeRef(),
+          SceneAccess.getMethod(type, "<init>", toTypes(params)).makeRef(),
           params
         )
       )
@@ -147,7 +193,7 @@ public class UnitSequence extends ArrayList<Unit>
 
   public void call(RefType type, String name, Value... params)
   {
-    this.call(type.getSootClass().getMethod(name, toTypes(params)), params);
+    this.call(SceneAccess.getMethod(type, name, toTypes(params)), params);
   }
 
   public void call(SootMethod method, Value... params)
@@ -162,7 +208,7 @@ public class UnitSequence extends ArrayList<Unit>
 
   public Local call(RefType type, String name, Type returnType, Value... params)
   {
-    return this.call(type.getSootClass().getMethod(name, toTypes(params)), returnType, params);
+    return this.call(SceneAccess.getMethod(type, name, toTypes(params)), returnType, params);
   }
 
   public Local call(SootMethod method, Type returnType, Value... params)
@@ -178,7 +224,7 @@ public class UnitSequence extends ArrayList<Unit>
 
   public void call(Local base, String name, Value... params)
   {
-    this.call(base, ((RefType)base.getType()).getSootClass().getMethod(name, toTypes(params)), params);
+    this.call(base, SceneAccess.getMethod((RefType)base.getType(), name, toTypes(params)), params);
   }
 
   public void call(Local base, SootMethod method, Value... params)
@@ -194,7 +240,7 @@ public class UnitSequence extends ArrayList<Unit>
 
   public Local call(Local base, String name, Type returnType, Value... params)
   {
-    return this.call(base, ((RefType)base.getType()).getSootClass().getMethod(name, toTypes(params)), returnType, params);
+    return this.call(base, SceneAccess.getMethod((RefType)base.getType(), name, toTypes(params)), returnType, params);
   }
 
   public Local call(Local base, SootMethod method, Type returnType, Value... params)
@@ -228,16 +274,37 @@ public class UnitSequence extends ArrayList<Unit>
     return this.call(RefType.v("java.lang.String"), "format", RefType.v("java.lang.String"), formatStr, argsArray);
   }
 
-  public Local extendedFormat(String formatString, Value result, Value thisRef, List<Value> argValues)
+  public Value extendedFormat(String formatString, Value result, Value thisRef, List<Value> argValues)
+  {
+    return this.concat(this.formatParts(formatString, result, thisRef, argValues, null, false));
+  }
+
+  // Produces only the placeholder values separated by tabs, the message can
+  // be restored from the format string later. {method} placeholders are left
+  // out as well.
+  public Value formatValues(String formatString, Value result, Value thisRef, List<Value> argValues, Value... prefix)
   {
-    Matcher matcher = Pattern.compile("\\{(.*?):(%.*?)\\}").matcher(formatString);
-    List<Value> args = new ArrayList<Value>();
-    String cleanFormatString = "";
+    List<Value> parts = new ArrayList<Value>(Arrays.asList(prefix));
+    parts.addAll(this.formatParts(formatString, result, thisRef, argValues, null, true));
+    return this.concat(parts);
+  }
+
+  private List<Value> formatParts(String formatString, Value result, Value thisRef, List<Value> argValues, Value skipped, boolean valuesOnly)
+  {
+    // The format string is compiled into StringBuilder calls here rather than
+    // parsed by String.format() on each call. String.format() is only used for
+    // placeholders with flags, width or precision.
+    Matcher matcher = PLACEHOLDER.matcher(formatString);
+    List<Value> parts = new ArrayList<Value>();
     int prevEnd = 0;
     while (matcher.find())
     {
-      cleanFormatString += formatString.substring(prevEnd, matcher.start());
-      cleanFormatString += matcher.group(2);
+      if (!valuesOnly)
+        this.addLiteral(parts, formatString.substring(prevEnd, matcher.start()));
+      else if (matcher.group(1).equals("method"))
+        continue;
+      else if (!parts.isEmpty())
+        parts.add(StringConstant.v("\t"));
       prevEnd = matcher.end();
 
       Value arg;
@@ -247,6 +314,8 @@ public class UnitSequence extends ArrayList<Unit>
         arg = result;
       else if (matcher.group(1).equals("this"))
         arg = thisRef;
+      else if (matcher.group(1).equals("skipped") && skipped != null)
+        arg = skipped;
       else if (matcher.group(1).equals("args"))
       {
         if (argValues.size() == 0)
@@ -263,9 +332,9 @@ public class UnitSequence extends ArrayList<Unit>
             if (first)
               first = false;
             else
-              this.call(builder, "append", StringConstant.v(", "));
+              this.append(builder, StringConstant.v(", "));
 
-            this.call(builder, "append", this.stringify(argValue));
+            this.append(builder, this.stringify(argValue));
           }
 
           arg = this.stringify(builder);
@@ -276,28 +345,128 @@ public class UnitSequence extends ArrayList<Unit>
       else
         throw new RuntimeException("Unknown parameter name " + matcher.group(1));
 
-      if (matcher.group(2).equals("%x"))
-        arg = (arg == null ? IntConstant.v(0) : this.getIdentity(arg));
-      args.add(arg);
+      parts.add(this.formatValue(matcher.group(2), arg));
     }
-    cleanFormatString += formatString.substring(prevEnd);
-    return this.format(
-      cleanFormatString,
-      args.toArray(new Value[0])
-    );
+    if (!valuesOnly)
+      this.addLiteral(parts, formatString.substring(prevEnd));
+    return parts;
+  }
+
+  private void addLiteral(List<Value> parts, String literal)
+  {
+    // Only %% and %n are valid in text outside placeholders
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < literal.length(); i++)
+    {
+      char c = literal.charAt(i);
+      if (c != '%')
+        text.append(c);
+      else if (i + 1 < literal.length() && literal.charAt(i + 1) == '%')
+        text.append(literal.charAt(++i));
+      else if (i + 1 < literal.length() && literal.charAt(i + 1) == 'n')
+      {
+        text.append('\n');
+        i++;
+      }
+      else
+      {
+        // Leave it to String.format() to produce the same error as before
+        parts.add(this.format(literal));
+        return;
+      }
+    }
+
+    if (text.length() > 0)
+      parts.add(StringConstant.v(text.toString()));
+  }
+
+  private static boolean isIntegral(Type type)
+  {
+    if (type instanceof ByteType || type instanceof ShortType || type instanceof IntType || type instanceof LongType)
+      return true;
+
+    if (type instanceof RefType)
+    {
+      String className = ((RefType)type).getClassName();
+      return className.equals("java.lang.Byte") || className.equals("java.lang.Short") ||
+          className.equals("java.lang.Integer") || className.equals("java.lang.Long") ||
+          className.equals("java.math.BigInteger");
+    }
+    return false;
+  }
+
+  private Value formatValue(String spec, Value arg)
+  {
+    if (spec.equals("%s") || (spec.equals("%d") && (arg == null || isIntegral(arg.getType()))))
+      return (arg == null ? StringConstant.v("null") : arg);
+    else if (spec.equals("%x"))
+    {
+      // %x is special, it formats the identity hash code of the object
+      if (arg == null)
+        return StringConstant.v("0");
+
+      SootMethod method = SceneAccess.getMethod(RefType.v("java.lang.Integer"), "toHexString", Collections.singletonList(IntType.v()));
+      return this.call(method, RefType.v("java.lang.String"), this.getIdentity(arg));
+    }
+    else
+      return this.format(spec, arg);
+  }
+
+  private void append(Local builder, Value value)
+  {
+    // Pick the StringBuilder.append() overload producing the same output as
+    // String.valueOf() would. Return type is required to rule out bridge
+    // methods.
+    Type type = value.getType();
+    Type paramType;
+    if (type instanceof BooleanType || type instanceof CharType || type instanceof LongType ||
+        type instanceof FloatType || type instanceof DoubleType)
+      paramType = type;
+    else if (type instanceof PrimType)
+      paramType = IntType.v();
+    else if (type.equals(RefType.v("java.lang.String")))
+      paramType = type;
+    else
+      paramType = RefType.v("java.lang.Object");
+
+    RefType builderType = RefType.v("java.lang.StringBuilder");
+    this.call(builder, SceneAccess.getMethod(builderType, "append", Collections.singletonList(paramType), builderType), value);
+  }
+
+  private Value concat(List<Value> parts)
+  {
+    // Merge adjacent string constants
+    List<Value> merged = new ArrayList<Value>();
+    for (Value part: parts)
+    {
+      int last = merged.size() - 1;
+      if (part instanceof StringConstant && last >= 0 && merged.get(last) instanceof StringConstant)
+        merged.set(last, StringConstant.v(((StringConstant)merged.get(last)).value + ((StringConstant)part).value));
+      else
+        merged.add(part);
+    }
+
+    if (merged.size() == 0)
+      return StringConstant.v("");
+    if (merged.size() == 1 && merged.get(0) instanceof StringConstant)
+      return merged.get(0);
+
+    Local builder = this.newObject("java.lang.StringBuilder");
+    for (Value part: merged)
+      this.append(builder, part);
+    return this.call(builder, "toString", RefType.v("java.lang.String"));
   }
 
   public Local getIdentity(Value obj)
   {
-    SootClass cls = RefType.v("java.lang.System").getSootClass();
-    SootMethod method = cls.getMethod("identityHashCode", Collections.singletonList(RefType.v("java.lang.Object")));
+    SootMethod method = SceneAccess.getMethod(RefType.v("java.lang.System"), "identityHashCode", Collections.singletonList(RefType.v("java.lang.Object")));
     return this.call(method, IntType.v(), obj);
   }
 
   public void insertBefore()
   {
     Stmt unit = ((JimpleBody)this.body).getFirstNonIdentityStmt();
-    if (this.body.getMethod().getName().equals("<init>") && unit.containsInvokeExpr() && unit.getInvokeExpr().getMethod().getName().equals("<init>"))
+    if (this.body.getMethod().getName().equals("<init>") && unit.containsInvokeExpr() && unit.getInvokeExpr().getMethodRef().getName().equals("<init>"))
     {
       // This is a super() constructor call, don't insert before it.
       this.insertAfter(unit);
@@ -312,8 +481,9 @@ public class UnitSequence extends ArrayList<Unit>
       throw new RuntimeException("Attempt to insert a unit sequence twice");
 
     this.inserted = true;
+    if (this.end != null)
+      this.add(this.end);
     this.body.getUnits().insertBefore(this, unit);
-    this.body.validate();
   }
 
   public void insertAfter(Unit unit)
@@ -322,7 +492,8 @@ public class UnitSequence extends ArrayList<Unit>
       throw new RuntimeException("Attempt to insert a unit sequence twice");
 
     this.inserted = true;
+    if (this.end != null)
+      this.add(this.end);
     this.body.getUnits().insertAfter(this, unit);
-    this.body.validate();
   }
 }
@@ -0,0 +1,47 @@
+/*
+ * This Source Code is subject to the terms of the Mozilla Public License
+ * version 2.0 (the "License"). You can obtain a copy of the License at
+ * http://mozilla.org/MPL/2.0/.
+ */
+
+package info.palant.apkInstrumentation;
+
+import java.util.Collections;
+import java.util.Map;
+
+import soot.Body;
+import soot.BodyTransformer;
+import soot.SootMethod;
+import soot.Unit;
+
+// Body transformers that only look at individual units. These are applied by
+// BodyDispatcher, all components share a single pass over the units then.
+public abstract class UnitTransformer extends BodyTransformer
+{
+  // Processes units of a single body
+  public abstract static class Visitor
+  {
+    // Called for each unit with the method it invokes (null if the unit isn't
+    // an invocation). Returns false if the unit should be removed. Units
+    // cannot be inserted here, this has to wait until finish().
+    public boolean visit(Unit unit, SootMethod method)
+    {
+      return true;
+    }
+
+    // Called after all units of the body have been visited
+    public void finish()
+    {
+    }
+  }
+
+  // Called before the units of a body are visited. Returns null if the
+  // transformer has nothing to do for this body.
+  protected abstract Visitor begin(Body body);
+
+  @Override
+  protected void internalTransform(Body body, String phaseName, Map<String, String> options)
+  {
+    BodyDispatcher.transform(body, Collections.singletonList(this));
+  }
+}
@@ -0,0 +1,317 @@
+/*
+ * This Source Code is subject to the terms of the Mozilla Public License
+ * version 2.0 (the "License"). You can obtain a copy of the License at
+ * http://mozilla.org/MPL/2.0/.
+ */
+
+package info.palant.apkInstrumentation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+public class ZipReader implements Closeable
+{
+  final static int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  final static int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  final static int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+  final static int LOCAL_HEADER_SIZE = 30;
+  final static int CENTRAL_HEADER_SIZE = 46;
+  final static int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+
+  final static int METHOD_STORED = 0;
+  final static int METHOD_DEFLATED = 8;
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final List<Entry> entries = new ArrayList<Entry>();
+
+  public static class Entry
+  {
+    byte[] nameBytes;
+    String name;
+    int versionMadeBy;
+    int versionNeeded;
+    int flags;
+    int method;
+    int time;
+    int date;
+    long crc;
+    long compressedSize;
+    long size;
+    byte[] extra;
+    byte[] comment;
+    int internalAttributes;
+    long externalAttributes;
+    long localHeaderOffset;
+
+    public String getName()
+    {
+      return this.name;
+    }
+
+    public int getMethod()
+    {
+      return this.method;
+    }
+
+    public long getSize()
+    {
+      return this.size;
+    }
+  }
+
+  public ZipReader(File path) throws IOException
+  {
+    this.file = new RandomAccessFile(path, "r");
+    this.channel = this.file.getChannel();
+    try
+    {
+      this.readCentralDirectory();
+    }
+    catch (IOException e)
+    {
+      this.close();
+      throw e;
+    }
+  }
+
+  private ByteBuffer read(long offset, int length) throws IOException
+  {
+    ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    while (buffer.hasRemaining())
+      if (this.channel.read(buffer, offset + buffer.position()) < 0)
+        throw new IOException("Unexpected end of ZIP file");
+    buffer.flip();
+    return buffer;
+  }
+
+  private void readCentralDirectory() throws IOException
+  {
+    // End of central directory record is followed by a comment of up to 64 KiB
+    long fileSize = this.channel.size();
+    int tailSize = (int)Math.min(fileSize, END_OF_CENTRAL_DIRECTORY_SIZE + 0xFFFF);
+    ByteBuffer tail = this.read(fileSize - tailSize, tailSize);
+    int eocd = -1;
+    for (int i = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--)
+    {
+      if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY_SIGNATURE)
+      {
+        eocd = i;
+        break;
+      }
+    }
+    if (eocd < 0)
+      throw new IOException("Not a ZIP file, end of central directory not found");
+
+    int count = tail.getShort(eocd + 10) & 0xFFFF;
+    long directorySize = tail.getInt(eocd + 12) & 0xFFFFFFFFL;
+    long directoryOffset = tail.getInt(eocd + 16) & 0xFFFFFFFFL;
+    if (count == 0xFFFF || directoryOffset == 0xFFFFFFFFL)
+      throw new IOException("ZIP64 archives are not supported");
+
+    ByteBuffer directory = this.read(directoryOffset, (int)directorySize);
+    for (int i = 0; i < count; i++)
+    {
+      if (directory.getInt() != CENTRAL_HEADER_SIGNATURE)
+        throw new IOException("Corrupt ZIP file, unexpected central directory record");
+
+      Entry entry = new Entry();
+      entry.versionMadeBy = directory.getShort() & 0xFFFF;
+      entry.versionNeeded = directory.getShort() & 0xFFFF;
+      entry.flags = directory.getShort() & 0xFFFF;
+      entry.method = directory.getShort() & 0xFFFF;
+      entry.time = directory.getShort() & 0xFFFF;
+      entry.date = directory.getShort() & 0xFFFF;
+      entry.crc = directory.getInt() & 0xFFFFFFFFL;
+      entry.compressedSize = directory.getInt() & 0xFFFFFFFFL;
+      entry.size = directory.getInt() & 0xFFFFFFFFL;
+      int nameLength = directory.getShort() & 0xFFFF;
+      int extraLength = directory.getShort() & 0xFFFF;
+      int commentLength = directory.getShort() & 0xFFFF;
+      directory.getShort();   // disk number
+      entry.internalAttributes = directory.getShort() & 0xFFFF;
+      entry.externalAttributes = directory.getInt() & 0xFFFFFFFFL;
+      entry.localHeaderOffset = directory.getInt() & 0xFFFFFFFFL;
+      entry.nameBytes = new byte[nameLength];
+      directory.get(entry.nameBytes);
+      entry.extra = new byte[extraLength];
+      directory.get(entry.extra);
+      entry.comment = new byte[commentLength];
+      directory.get(entry.comment);
+
+      // Android always decodes names as UTF-8, regardless of the flags
+      entry.name = new String(entry.nameBytes, StandardCharsets.UTF_8);
+      this.entries.add(entry);
+    }
+  }
+
+  public List<Entry> getEntries()
+  {
+    return Collections.unmodifiableList(this.entries);
+  }
+
+  public Entry getEntry(String name)
+  {
+    for (Entry entry: this.entries)
+      if (entry.name.equals(name))
+        return entry;
+    return null;
+  }
+
+  private ByteBuffer readLocalHeader(Entry entry) throws IOException
+  {
+    ByteBuffer header = this.read(entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+    if (header.getInt(0) != LOCAL_HEADER_SIGNATURE)
+      throw new IOException("Corrupt ZIP file, unexpected local header for " + entry.name);
+    return header;
+  }
+
+  private long getDataOffset(Entry entry) throws IOException
+  {
+    ByteBuffer header = this.readLocalHeader(entry);
+    int nameLength = header.getShort(26) & 0xFFFF;
+    int extraLength = header.getShort(28) & 0xFFFF;
+    return entry.localHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+  }
+
+  // Extra field of the local header, this can differ from the one in the
+  // central directory.
+  public byte[] readLocalExtra(Entry entry) throws IOException
+  {
+    ByteBuffer header = this.readLocalHeader(entry);
+    int nameLength = header.getShort(26) & 0xFFFF;
+    int extraLength = header.getShort(28) & 0xFFFF;
+    return this.read(entry.localHeaderOffset + LOCAL_HEADER_SIZE + nameLength, extraLength).array();
+  }
+
+  public void copyRawData(Entry entry, OutputStream output) throws IOException
+  {
+    long offset = this.getDataOffset(entry);
+    long remaining = entry.compressedSize;
+    ByteBuffer buffer = ByteBuffer.allocate(1024*64);
+    while (remaining > 0)
+    {
+      buffer.clear();
+      if (remaining < buffer.capacity())
+        buffer.limit((int)remaining);
+      int numBytes = this.channel.read(buffer, offset);
+      if (numBytes < 0)
+        throw new IOException("Unexpected end of ZIP file");
+      output.write(buffer.array(), 0, numBytes);
+      offset += numBytes;
+      remaining -= numBytes;
+    }
+  }
+
+  public InputStream getInputStream(Entry entry) throws IOException
+  {
+    InputStream raw = Channels.newInputStream(this.channel.position(this.getDataOffset(entry)));
+    raw = new BoundedInputStream(raw, entry.compressedSize);
+    if (entry.method == METHOD_STORED)
+      return raw;
+    else if (entry.method == METHOD_DEFLATED)
+      return new EntryInflaterInputStream(raw);
+    else
+      throw new IOException("Unsupported compression method " + entry.method + " for " + entry.name);
+  }
+
+  public byte[] readData(Entry entry) throws IOException
+  {
+    ByteArrayOutputStream result = new ByteArrayOutputStream((int)entry.size);
+    InputStream input = this.getInputStream(entry);
+    byte[] buffer = new byte[1024*64];
+    int numBytes;
+    while ((numBytes = input.read(buffer)) != -1)
+      result.write(buffer, 0, numBytes);
+    input.close();
+    return result.toByteArray();
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    this.file.close();
+  }
+
+  private static class EntryInflaterInputStream extends InflaterInputStream
+  {
+    private boolean eof = false;
+
+    EntryInflaterInputStream(InputStream in)
+    {
+      super(in, new Inflater(true));
+    }
+
+    @Override
+    protected void fill() throws IOException
+    {
+      if (this.eof)
+        throw new IOException("Unexpected end of compressed data");
+
+      // Inflater without ZLIB header might need an additional dummy byte
+      this.len = this.in.read(this.buf, 0, this.buf.length);
+      if (this.len == -1)
+      {
+        this.buf[0] = 0;
+        this.len = 1;
+        this.eof = true;
+      }
+      this.inf.setInput(this.buf, 0, this.len);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      this.inf.end();
+    }
+  }
+
+  private static class BoundedInputStream extends InputStream
+  {
+    private final InputStream in;
+    private long remaining;
+
+    BoundedInputStream(InputStream in, long length)
+    {
+      this.in = in;
+      this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+      if (this.remaining <= 0)
+        return -1;
+      int result = this.in.read();
+      if (result >= 0)
+        this.remaining--;
+      return result;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+      if (this.remaining <= 0)
+        return -1;
+      int result = this.in.read(b, off, (int)Math.min(len, this.remaining));
+      if (result > 0)
+        this.remaining -= result;
+      return result;
+    }
+  }
+}
@@ -0,0 +1,320 @@
+/*
+ * This Source Code is subject to the terms of the Mozilla Public License
+ * version 2.0 (the "License"). You can obtain a copy of the License at
+ * http://mozilla.org/MPL/2.0/.
+ */
+
+package info.palant.apkInstrumentation;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+public class ZipWriter implements Closeable
+{
+  // Same alignment as zipalign -p: uncompressed data is 4 bytes aligned,
+  // shared libraries are page aligned so that they can be mapped directly.
+  final static int ALIGNMENT = 4;
+  final static int LIBRARY_ALIGNMENT = 4096;
+
+  // Extra field used by Android tools for alignment padding
+  final static short ALIGNMENT_EXTRA_ID = (short)0xd935;
+  final static int ALIGNMENT_EXTRA_SIZE = 6;
+
+  // Date and time of newly created entries: 1981-01-01 00:00, as in apksigner
+  final static int DEFAULT_DATE = (1 << 9) | (1 << 5) | 1;
+  final static int DEFAULT_TIME = 0;
+
+  private final File path;
+  private final FileOutputStream file;
+  private final OutputStream output;
+  private boolean closed = false;
+  private long offset = 0;
+  private final List<ZipReader.Entry> entries = new ArrayList<ZipReader.Entry>();
+
+  private final APKSigner signer;
+  private final APKSigner.ContentDigest contentDigest;
+  private final Map<String,byte[]> entryDigests = new LinkedHashMap<String,byte[]>();
+  private final String entryDigestAlgorithm;
+
+  public ZipWriter(File path) throws IOException
+  {
+    this(path, null, 0);
+  }
+
+  // Minimal SDK version of the APK determines the digest used for the v1
+  // signature
+  public ZipWriter(File path, APKSigner signer, int minSdkVersion) throws IOException
+  {
+    this.signer = signer;
+    this.entryDigestAlgorithm = (signer != null && signer.isV1Enabled() ? signer.getV1DigestAlgorithm(minSdkVersion) : null);
+    this.path = path;
+    this.file = new FileOutputStream(path);
+    if (signer != null)
+    {
+      this.contentDigest = new APKSigner.ContentDigest(this.file);
+      this.output = new BufferedOutputStream(this.contentDigest, 1024*64);
+    }
+    else
+    {
+      this.contentDigest = null;
+      this.output = new BufferedOutputStream(this.file, 1024*64);
+    }
+  }
+
+  private void write(byte[] data) throws IOException
+  {
+    this.output.write(data);
+    this.offset += data.length;
+  }
+
+  private static int getAlignment(ZipReader.Entry entry)
+  {
+    // Compressed data cannot be mapped, no need to align it
+    if (entry.method != ZipReader.METHOD_STORED)
+      return 0;
+    return entry.name.endsWith(".so") ? LIBRARY_ALIGNMENT : ALIGNMENT;
+  }
+
+  // Alignment padding is recalculated, other extra data of the local header
+  // is kept. Zero records are dropped as well, older zipalign versions padded
+  // with zeros. So is an incomplete record at the end.
+  private static byte[] removeAlignment(byte[] extra)
+  {
+    ByteBuffer input = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+    ByteArrayOutputStream result = new ByteArrayOutputStream(extra.length);
+    while (input.remaining() >= 4)
+    {
+      int start = input.position();
+      short id = input.getShort();
+      int size = input.getShort() & 0xFFFF;
+      if (size > input.remaining())
+        break;
+      input.position(input.position() + size);
+      if (id != ALIGNMENT_EXTRA_ID && (id != 0 || size != 0))
+        result.write(extra, start, 4 + size);
+    }
+    return result.toByteArray();
+  }
+
+  private void writeLocalHeader(ZipReader.Entry entry, byte[] extra) throws IOException
+  {
+    entry.localHeaderOffset = this.offset;
+
+    int alignment = getAlignment(entry);
+    int extraLength = extra.length;
+    if (alignment > 0)
+    {
+      long dataOffset = this.offset + ZipReader.LOCAL_HEADER_SIZE + entry.nameBytes.length + extra.length + ALIGNMENT_EXTRA_SIZE;
+      extraLength += ALIGNMENT_EXTRA_SIZE + (int)((alignment - dataOffset % alignment) % alignment);
+    }
+    if (extraLength > 0xFFFF)
+      throw new IOException("Extra field of " + entry.name + " is too large to add alignment");
+
+    ByteBuffer header = ByteBuffer.allocate(ZipReader.LOCAL_HEADER_SIZE + entry.nameBytes.length + extraLength).order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(ZipReader.LOCAL_HEADER_SIGNATURE);
+    header.putShort((short)entry.versionNeeded);
+    header.putShort((short)entry.flags);
+    header.putShort((short)entry.method);
+    header.putShort((short)entry.time);
+    header.putShort((short)entry.date);
+    header.putInt((int)entry.crc);
+    header.putInt((int)entry.compressedSize);
+    header.putInt((int)entry.size);
+    header.putShort((short)entry.nameBytes.length);
+    header.putShort((short)extraLength);
+    header.put(entry.nameBytes);
+    header.put(extra);
+    if (alignment > 0)
+    {
+      // Remaining bytes of the extra field stay zero as padding
+      header.putShort(ALIGNMENT_EXTRA_ID);
+      header.putShort((short)(extraLength - extra.length - 4));
+      header.putShort((short)alignment);
+    }
+    this.write(header.array());
+  }
+
+  private ZipReader.Entry copyMetadata(ZipReader.Entry template)
+  {
+    ZipReader.Entry entry = new ZipReader.Entry();
+    entry.nameBytes = template.nameBytes;
+    entry.name = template.name;
+    entry.versionMadeBy = template.versionMadeBy;
+    entry.versionNeeded = template.versionNeeded;
+
+    // Sizes and checksum are always known up front, no data descriptor
+    entry.flags = template.flags & ~0x08;
+    entry.method = template.method;
+    entry.time = template.time;
+    entry.date = template.date;
+    entry.crc = template.crc;
+    entry.compressedSize = template.compressedSize;
+    entry.size = template.size;
+    entry.extra = template.extra;
+    entry.comment = template.comment;
+    entry.internalAttributes = template.internalAttributes;
+    entry.externalAttributes = template.externalAttributes;
+    return entry;
+  }
+
+  public void copyEntry(ZipReader reader, ZipReader.Entry source) throws IOException
+  {
+    ZipReader.Entry entry = this.copyMetadata(source);
+    this.writeLocalHeader(entry, removeAlignment(reader.readLocalExtra(source)));
+    reader.copyRawData(source, this.output);
+    this.offset += entry.compressedSize;
+    this.entries.add(entry);
+
+    if (this.needsEntryDigest(entry))
+      this.entryDigests.put(entry.name, APKSigner.digest(this.entryDigestAlgorithm, reader.getInputStream(source)));
+  }
+
+  private boolean needsEntryDigest(ZipReader.Entry entry)
+  {
+    return this.signer != null && this.signer.isV1Enabled() &&
+        !entry.name.endsWith("/") && !APKSigner.isSignatureFile(entry.name);
+  }
+
+  public void writeEntry(String name, ZipReader.Entry template, byte[] data) throws IOException
+  {
+    ZipReader.Entry entry = this.copyMetadata(template);
+    entry.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+    entry.name = name;
+    entry.extra = new byte[0];
+    entry.comment = new byte[0];
+
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    entry.crc = crc.getValue();
+    entry.size = data.length;
+
+    byte[] compressed = data;
+    if (entry.method == ZipReader.METHOD_DEFLATED)
+    {
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream(data.length / 2);
+      Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+      DeflaterOutputStream stream = new DeflaterOutputStream(buffer, deflater);
+      stream.write(data);
+      stream.close();
+      deflater.end();
+      compressed = buffer.toByteArray();
+    }
+    else if (entry.method != ZipReader.METHOD_STORED)
+      throw new IOException("Unsupported compression method " + entry.method + " for " + name);
+    entry.compressedSize = compressed.length;
+
+    this.writeLocalHeader(entry, new byte[0]);
+    this.write(compressed);
+    this.entries.add(entry);
+
+    if (this.needsEntryDigest(entry))
+      this.entryDigests.put(entry.name, APKSigner.digest(this.entryDigestAlgorithm, data));
+  }
+
+  public void writeEntry(String name, byte[] data) throws IOException
+  {
+    ZipReader.Entry template = new ZipReader.Entry();
+    template.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+    template.name = name;
+    template.versionMadeBy = 20;
+    template.versionNeeded = 20;
+    template.method = ZipReader.METHOD_DEFLATED;
+    template.time = DEFAULT_TIME;
+    template.date = DEFAULT_DATE;
+    this.writeEntry(name, template, data);
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    if (this.signer != null && this.signer.isV1Enabled())
+      for (Map.Entry<String,byte[]> file: this.signer.createV1Files(this.entryDigests, this.entryDigestAlgorithm).entrySet())
+        this.writeEntry(file.getKey(), file.getValue());
+
+    long directoryOffset = this.offset;
+    ByteArrayOutputStream directory = new ByteArrayOutputStream();
+    for (ZipReader.Entry entry: this.entries)
+    {
+      ByteBuffer header = ByteBuffer.allocate(ZipReader.CENTRAL_HEADER_SIZE + entry.nameBytes.length + entry.extra.length + entry.comment.length).order(ByteOrder.LITTLE_ENDIAN);
+      header.putInt(ZipReader.CENTRAL_HEADER_SIGNATURE);
+      header.putShort((short)entry.versionMadeBy);
+      header.putShort((short)entry.versionNeeded);
+      header.putShort((short)entry.flags);
+      header.putShort((short)entry.method);
+      header.putShort((short)entry.time);
+      header.putShort((short)entry.date);
+      header.putInt((int)entry.crc);
+      header.putInt((int)entry.compressedSize);
+      header.putInt((int)entry.size);
+      header.putShort((short)entry.nameBytes.length);
+      header.putShort((short)entry.extra.length);
+      header.putShort((short)entry.comment.length);
+      header.putShort((short)0);
+      header.putShort((short)entry.internalAttributes);
+      header.putInt((int)entry.externalAttributes);
+      header.putInt((int)entry.localHeaderOffset);
+      header.put(entry.nameBytes);
+      header.put(entry.extra);
+      header.put(entry.comment);
+      directory.write(header.array());
+    }
+    byte[] directoryBytes = directory.toByteArray();
+
+    ByteBuffer end = ByteBuffer.allocate(ZipReader.END_OF_CENTRAL_DIRECTORY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    end.putInt(ZipReader.END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+    end.putShort((short)0);
+    end.putShort((short)0);
+    end.putShort((short)this.entries.size());
+    end.putShort((short)this.entries.size());
+    end.putInt(directoryBytes.length);
+    end.putInt((int)directoryOffset);
+    end.putShort((short)0);
+
+    // APK signing block goes between entries and central directory
+    if (this.signer != null)
+    {
+      this.output.flush();
+      byte[] block = this.signer.createSigningBlock(this.contentDigest.finish(), directoryBytes, end.array());
+      this.write(block);
+      end.putInt(16, (int)(directoryOffset + block.length));
+    }
+
+    if (this.entries.size() >= 0xFFFF || this.offset + directoryBytes.length >= 0xFFFFFFFFL)
+      throw new IOException("Output too large, ZIP64 archives are not supported");
+
+    this.write(directoryBytes);
+    this.write(end.array());
+    this.output.close();
+    this.closed = true;
+  }
+
+  // Releases the file if writing failed, incomplete output is removed. Does
+  // nothing if the archive has been closed successfully.
+  public void abort() throws IOException
+  {
+    if (this.closed)
+      return;
+
+    this.closed = true;
+    if (this.contentDigest != null)
+      this.contentDigest.close();
+    else
+      this.file.close();
+    this.path.delete();
+  }
+}
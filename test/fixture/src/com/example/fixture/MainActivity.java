@@ -0,0 +1,49 @@
+/*
+ * This Source Code is subject to the terms of the Mozilla Public License
+ * version 2.0 (the "License"). You can obtain a copy of the License at
+ * http://mozilla.org/MPL/2.0/.
+ */
+
+package com.example.fixture;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.util.Log;
+
+public class MainActivity extends Activity
+{
+  @Override
+  protected void onCreate(Bundle savedInstanceState)
+  {
+    super.onCreate(savedInstanceState);
+    Log.i("Fixture", "Read " + readAsset("data.bin") + " bytes");
+  }
+
+  int readAsset(String name)
+  {
+    int result = 0;
+    try
+    {
+      InputStream stream = getAssets().open(name);
+      try
+      {
+        byte[] buffer = new byte[4096];
+        int numBytes;
+        while ((numBytes = stream.read(buffer)) >= 0)
+          result += numBytes;
+      }
+      finally
+      {
+        stream.close();
+      }
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace();
+    }
+    return result;
+  }
+}